@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Telstra Corporation.
+ *
+ * This program is the property of Telstra Corporation.
+ * You may not use this code without the express permission of
+ * the designated business owner of the software in Telstra.
+ * Parts of this program are copyright Dialog Information Technology
+ * and licensed for the use of Telstra Corporation as part of this
+ * software.
+ */
+package canrad.celltrace;
+
+import canrad.geometry.components.Port;
+import canrad.geometry.components.Segment;
+import canrad.geometry.components.Transceiver;
+import canrad.layout.models.CellConnectionDetails;
+import canrad.layout.models.PortConnectionDetails;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The AntennaCellQuery class finds the mobiles cells that reach a single
+ * antenna port. Only the transceiver segments in the region of the graph that
+ * leads to the port are traced, with the same rules as the site trace.
+ *
+ * @author
+ */
+public final class AntennaCellQuery
+{
+    private final ConnectivityGraph graph;
+    private final int antennaPort;
+    private final BitSet region;
+
+    /**
+     * @param graph       the compiled connectivity graph of the site
+     * @param antennaPort the ordinal of the antenna port in the graph
+     */
+    public AntennaCellQuery(ConnectivityGraph graph, int antennaPort)
+    {
+        this.graph = graph;
+        this.antennaPort = antennaPort;
+        this.region = findRegion();
+    }
+
+    /**
+     * Finds the ports a walk can arrive at and still reach the antenna port.
+     * A walk arrives at a port through the feeder of its peer; the peer is
+     * reached from the inputs of its junction device that map to it.
+     */
+    private BitSet findRegion()
+    {
+        BitSet found = new BitSet(graph.getPortCount());
+        int[] queue = new int[16];
+        int size = 0;
+        found.set(antennaPort);
+        queue[size++] = antennaPort;
+        while (size > 0)
+        {
+            int arrival = queue[--size];
+            int out = graph.getPeerPort(arrival);
+            if (out == ConnectivityGraph.NONE || graph.getPortFeeder(out) == ConnectivityGraph.NONE)
+                continue;
+            int device = graph.getPortDevice(out);
+            JunctionMappingIndex index = graph.getMappingIndex(device);
+            if (index == null)
+                continue;
+            for (int input = graph.getFirstPort(device); input < graph.getEndPort(device); input++)
+            {
+                int mappingInput = graph.getMappingInput(input);
+                if (found.get(input) || mappingInput == ConnectivityGraph.NONE)
+                    continue;
+                for (int row = index.getFirstMapping(mappingInput); row < index.getEndMapping(mappingInput); row++)
+                {
+                    if (graph.getMappingTarget(input, row) == out)
+                    {
+                        found.set(input);
+                        if (size == queue.length)
+                            queue = Arrays.copyOf(queue, size * 2);
+                        queue[size++] = input;
+                        break;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Traces the segments of the mobiles transceivers that can reach the
+     * antenna port. The segments of a port that start with the same
+     * frequencies share one walk.
+     *
+     * @return the details of every transceiver segment that fits a segment of
+     *         the antenna port, one for each antenna segment it fits; the
+     *         connected port and segment are those of the transceiver, the
+     *         cell is null for a segment without a mobiles cell
+     */
+    public List<CellConnectionDetails> getCells()
+    {
+        List<CellConnectionDetails> cellsList = new ArrayList<>();
+        SiteReferenceData data = graph.getReferenceData();
+        int antennaDataPort = data.indexOf(graph.getPort(antennaPort));
+        if (antennaDataPort == ConnectivityGraph.NONE || data.getFirstSegment(antennaDataPort) == data.getEndSegment(antennaDataPort))
+            return cellsList;
+
+        TraceContext context = new TraceContext(graph, null);
+        context.setRegion(region);
+        for (int device = 0; device < graph.getDeviceCount(); device++)
+        {
+            if (graph.getDeviceKind(device) != ConnectivityGraph.DEVICE_TRANSCEIVER
+                    || !((Transceiver) graph.getDevice(device)).isMobilesType())
+                continue;
+            for (int source = graph.getFirstPort(device); source < graph.getEndPort(device); source++)
+            {
+                int peer = graph.getPeerPort(source);
+                if (peer == ConnectivityGraph.NONE || !region.get(peer))
+                    continue;
+
+                Port transceiverPort = graph.getPort(source);
+                int dataPort = data.indexOf(transceiverPort);
+                if (dataPort == ConnectivityGraph.NONE)
+                    continue;
+                Map<FrequencyIntervalSet, boolean[]> fits = new HashMap<>();
+                for (int s = data.getFirstSegment(dataPort); s < data.getEndSegment(dataPort); s++)
+                {
+                    Segment transceiverSegment = data.getSegment(s);
+                    FrequencyIntervalSet frequencies = data.getFrequencies(s);
+                    boolean[] fit = fits.get(frequencies);
+                    if (fit == null)
+                    {
+                        fit = traceFits(context, data, transceiverPort, transceiverSegment, antennaDataPort);
+                        fits.put(frequencies, fit);
+                    }
+                    for (boolean segmentFit : fit)
+                    {
+                        if (segmentFit)
+                        {
+                            CellConnectionDetails details = new CellConnectionDetails();
+                            details.setConnectedPort(transceiverSegment.getParentPort());
+                            details.setConnectedSegment(transceiverSegment);
+                            details.setTransceiverFuncType(data.getFuncType(s));
+                            details.setMobilesCell(data.getCell(s));
+                            cellsList.add(details);
+                        }
+                    }
+                }
+            }
+        }
+        return cellsList;
+    }
+
+    /**
+     * @return for each segment of the antenna port, whether the frequencies
+     *         of the transceiver segment reach the port and fit the segment
+     */
+    private boolean[] traceFits(TraceContext context, SiteReferenceData data, Port transceiverPort, Segment transceiverSegment, int antennaDataPort)
+    {
+        boolean[] fit = new boolean[data.getEndSegment(antennaDataPort) - data.getFirstSegment(antennaDataPort)];
+        BitSet fits = new BitSet(fit.length);
+
+        context.startWalk(null);
+        for (PortConnectionDetails deviceConn : TransceiverConnectivityHandler.traceSegmentPath(context, transceiverPort, transceiverSegment))
+        {
+            if (graph.indexOf(deviceConn.getConnectedPort()) != antennaPort)
+                continue;
+            data.findFittingSegments(antennaDataPort, context.getIncomingFrequencies(deviceConn), fits);
+            for (int i = fits.nextSetBit(0); i >= 0; i = fits.nextSetBit(i + 1))
+            {
+                fit[i] = true;
+            }
+        }
+        return fit;
+    }
+}
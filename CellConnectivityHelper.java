@@ -20,13 +20,13 @@ import canrad.geometry.components.Transceiver;
 import canrad.layout.models.CellConnectionDetails;
 import canrad.layout.models.FrequencyRange;
 import canrad.layout.models.PortConnectionDetails;
-import canrad.reference.components.CanradLibrary;
 import canrad.reference.components.JunctionDeviceTypeIntPortMap;
 import canrad.reference.components.MobilesCell;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -65,6 +65,27 @@ public abstract class CellConnectivityHelper
         return remainingFrequencies;
     }
 
+    /**
+     * Adjust the allowed frequencies for a row of a compiled mapping index.
+     *
+     * @param index
+     * @param row
+     * @param frequencies
+     * @return
+     */
+    protected static FrequencyIntervalSet adjustAllowedFrequencies(JunctionMappingIndex index, int row, FrequencyIntervalSet frequencies)
+    {
+        if (!index.hasFrequencies(row))
+        {
+            return index.isPass(row) ? frequencies : FrequencyIntervalSet.EMPTY;
+        }
+        if (index.isPass(row))
+        {
+            return frequencies.intersect(index.getMinFrequency(row), index.getMaxFrequency(row));
+        }
+        return frequencies.subtract(index.getMinFrequency(row), index.getMaxFrequency(row));
+    }
+
     /**
      * Takes the junction device mapping record, the incoming minimum and
      * maximum frequency range and the pass/stop flag
@@ -79,6 +100,23 @@ public abstract class CellConnectivityHelper
      *                             mapping is applied
      */
     protected static void calculateFrequencyRanges(JunctionDeviceTypeIntPortMap mapping, Double min, Double max, Boolean isPass, List<FrequencyRange> remainingFrequencies)
+    {
+        calculateFrequencyRanges(mapping.getMinFrequency(), mapping.getMaxFrequency(), min, max, isPass, remainingFrequencies);
+    }
+
+    /**
+     * As {@link #calculateFrequencyRanges(JunctionDeviceTypeIntPortMap, Double, Double, Boolean, List)},
+     * with the frequency bounds of the mapping record given as primitives.
+     *
+     * @param mappingMin           The minimum frequency of the mapping record
+     * @param mappingMax           The maximum frequency of the mapping record
+     * @param min                  The minimum incoming frequency
+     * @param max                  The maximum incoming frequency
+     * @param isPass               The pass condition flag
+     * @param remainingFrequencies The list of frequencies that remain after the
+     *                             mapping is applied
+     */
+    protected static void calculateFrequencyRanges(double mappingMin, double mappingMax, double min, double max, boolean isPass, List<FrequencyRange> remainingFrequencies)
     {
         // The current CANRAD system does not enforce this condition (min <= max) on the Antenna frequency range.
         // Given that this is an invalid condition and shouldn't happen, don't check further for a fit.
@@ -91,10 +129,10 @@ public abstract class CellConnectivityHelper
             // A pass condition indicates that frequencies that are inside the range of the junction device will pass through
             // if there is any overlap between the incoming frequency and the mapping frequency.  The remaining frequency
             // will be the overlap area between the two.
-            if (hasFrequencyOverlap(mapping, min, max))
+            if (min <= mappingMax && max >= mappingMin)
             {
-                Double newMin = mapping.getMinFrequency() > min ? mapping.getMinFrequency() : min;
-                Double newMax = mapping.getMaxFrequency() < max ? mapping.getMaxFrequency() : max;
+                double newMin = mappingMin > min ? mappingMin : min;
+                double newMax = mappingMax < max ? mappingMax : max;
                 FrequencyRange newFrequency = new FrequencyRange(newMin, newMax);
                 remainingFrequencies.add(newFrequency);
             }
@@ -104,10 +142,10 @@ public abstract class CellConnectivityHelper
             // Is stop condition.  This indicates that any frequencies that are inside the range of the mapping frequency
             // range cannot pass through.  The remaining frequencies will be the area outside the mapping range. This
             // can be split in two if the incoming range completely spans the mapping range.
-            if (!isFrequencyFullyContained(mapping, min, max))
+            if (min < mappingMin || max > mappingMax)
             {
                 // If there is no overlap, the full incoming frequency can pass through
-                if (hasNoOverlap(mapping, min, max))
+                if (min > mappingMax || max < mappingMin)
                 {
                     FrequencyRange range = new FrequencyRange(min, max);
                     remainingFrequencies.add(range);
@@ -115,23 +153,23 @@ public abstract class CellConnectivityHelper
                 }
                 // The mapping frequency is completely contained in the incoming frequency, the remaining frequency is
                 // split into the area above and below the mapping range
-                if (min < mapping.getMinFrequency() && max > mapping.getMaxFrequency())
+                if (min < mappingMin && max > mappingMax)
                 {
-                    FrequencyRange lowerRange = new FrequencyRange(min, mapping.getMinFrequency());
-                    FrequencyRange upperRange = new FrequencyRange(mapping.getMaxFrequency(), max);
+                    FrequencyRange lowerRange = new FrequencyRange(min, mappingMin);
+                    FrequencyRange upperRange = new FrequencyRange(mappingMax, max);
                     remainingFrequencies.add(lowerRange);
                     remainingFrequencies.add(upperRange);
                     return;
                 }
                 // There is a single area above or below the mapped frequency range
                 FrequencyRange range;
-                if (max > mapping.getMaxFrequency())
+                if (max > mappingMax)
                 {
-                    range = new FrequencyRange(mapping.getMaxFrequency(), max);
+                    range = new FrequencyRange(mappingMax, max);
                 }
                 else
                 {
-                    range = new FrequencyRange(min, mapping.getMinFrequency());
+                    range = new FrequencyRange(min, mappingMin);
                 }
                 remainingFrequencies.add(range);
             }
@@ -158,55 +196,137 @@ public abstract class CellConnectivityHelper
      */
     protected static List<PortConnectionDetails> findMappedPorts(JunctionDevice jd, Port port, List<FrequencyRange> frequencyRanges)
     {
-        List<PortConnectionDetails> connectionMappingList = new ArrayList<>();
-        
-        final String deviceTypeCode = jd.getTypeCode();
-        final String typePortId = port.getTypePortId();
-        final List<JunctionDeviceTypeIntPortMap> portMappings = CanradLibrary.getInstance().getJDIntPortMaps(deviceTypeCode);
-        Map<Port, PortConnectionDetails> connectionMap = new LinkedHashMap<>();
-        for (JunctionDeviceTypeIntPortMap mapping : portMappings)
+        return findMappedPorts(null, null, jd, port, FrequencyIntervalSet.of(frequencyRanges));
+    }
+
+    /**
+     * As {@link #findMappedPorts(JunctionDevice, Port, List)}, recording the
+     * revised frequencies and mappings in the trace context.
+     *
+     * @param context     The context of the trace
+     * @param jd          The junction device being checked
+     * @param port        The input port on the device
+     * @param frequencies The frequencies that are still available for this
+     *                    path
+     * @return The port connection details for all ports that are connected and
+     *         have a frequency match
+     */
+    protected static List<PortConnectionDetails> findMappedPorts(TraceContext context, JunctionDevice jd, Port port, FrequencyIntervalSet frequencies)
+    {
+        return findMappedPorts(context.getGraph(), context, jd, port, frequencies);
+    }
+
+    private static List<PortConnectionDetails> findMappedPorts(ConnectivityGraph graph, TraceContext context, JunctionDevice jd, Port port, FrequencyIntervalSet frequencies)
+    {
+        // The mapping rows of the port are resolved when the graph is compiled, the legacy path looks them up by type
+        final int graphPort = graph != null ? graph.indexOf(port) : ConnectivityGraph.NONE;
+        final JunctionMappingIndex index;
+        final int input;
+        if (graphPort != ConnectivityGraph.NONE)
         {
-            String otherPortTypeId = null;
-            if (mapping.getPortA().equals(typePortId))
-            {
-                otherPortTypeId = mapping.getPortB();
-            }
-            else if (mapping.getPortB().equals(typePortId))
+            index = graph.getMappingIndex(graph.getPortDevice(graphPort));
+            input = graph.getMappingInput(graphPort);
+        }
+        else
+        {
+            index = JunctionMappingIndex.forType(jd.getTypeCode());
+            input = index.indexOf(port.getTypePortId());
+        }
+        if (index == null || input == ConnectivityGraph.NONE)
+        {
+            return context != null ? Collections.<PortConnectionDetails>emptyList() : new ArrayList<>();
+        }
+
+        // The ports the mappings lead to in the order of their first mapping, a port has few mappings
+        final List<Port> otherPorts;
+        final List<PortConnectionDetails> connections;
+        final List<FrequencyIntervalSet> outgoing;
+        if (context != null)
+        {
+            otherPorts = context.getHopPorts();
+            connections = context.getHopConnections();
+            outgoing = context.getHopFrequencies();
+            otherPorts.clear();
+            connections.clear();
+            outgoing.clear();
+        }
+        else
+        {
+            otherPorts = new ArrayList<>();
+            connections = new ArrayList<>();
+            outgoing = new ArrayList<>();
+        }
+        // The frequencies passed by each mapping are shared by every device of the type
+        final int firstRow = index.getFirstMapping(input);
+        final FrequencyIntervalSet[] transfer = index.getTransfer(input, frequencies);
+        for (int row = firstRow; row < index.getEndMapping(input); row++)
+        {
+            // If there are frequencies on the port mapping, need to check the fit with the current frequency range(s)
+            FrequencyIntervalSet newFrequencies = transfer[row - firstRow];
+            if (newFrequencies.isEmpty())
             {
-                otherPortTypeId = mapping.getPortA();
+                continue;
             }
-            // If there are frequencies on the port mapping, need to check the fit with the current frequency range(s)
-            if (otherPortTypeId != null)
+            // If we have found a port mapping and it either has no frequency defined or passes the frequency fit check...
+            // If the port passes and the frequency passes,
+            final int target = graphPort != ConnectivityGraph.NONE ? graph.getMappingTarget(graphPort, row) : ConnectivityGraph.NONE;
+            Port otherPort = target != ConnectivityGraph.NONE ? graph.getPort(target) : jd.getPortByTypePortId(index.getOtherPortTypeId(row));
+            int other = otherPorts.indexOf(otherPort);
+            PortConnectionDetails portConnection;
+            if (other < 0)
             {
-                List<FrequencyRange> newFrequencyRanges = adjustAllowedFrequencyRange(mapping, frequencyRanges);
-                if (newFrequencyRanges.isEmpty())
-                {
-                    continue;
-                }
-                // If we have found a port mapping and it either has no frequency defined or passes the frequency fit check...
-                // If the port passes and the frequency passes,
-                Port otherPort = jd.getPortByTypePortId(otherPortTypeId);
-                PortConnectionDetails portConnection;
-                if (connectionMap.containsKey(otherPort))
-                {
-                    portConnection = connectionMap.get(otherPort);
-                }
-                else
+                portConnection = target != ConnectivityGraph.NONE ? graph.getConnection(target) : null;
+                if (portConnection == null)
                 {
                     portConnection = getPortConnectionForDeviceAndPort(jd, otherPort.getId());
-                    portConnection.getIncomingFrequencyRanges().clear();
                 }
-                
-                //TODO 
-                portConnection.addMapping(mapping);
-                portConnection.getIncomingFrequencyRanges().addAll(newFrequencyRanges);
-                connectionMap.put(otherPort, portConnection);
+                otherPorts.add(otherPort);
+                connections.add(portConnection);
+                outgoing.add(newFrequencies);
+            }
+            else
+            {
+                // Several mappings lead to the same port, the frequencies of all of them pass
+                portConnection = connections.get(other);
+                outgoing.set(other, outgoing.get(other).union(newFrequencies));
             }
+
+            //TODO 
+            if (context != null)
+                context.addMapping(portConnection, index.getMapping(row));
+            else
+                portConnection.addMapping(index.getMapping(row));
+        }
+        if (connections.isEmpty() && context != null)
+        {
+            return Collections.<PortConnectionDetails>emptyList();
+        }
+
+        // The mapped ports of a recorded walk are kept for the cell connectivity tree view
+        List<PortConnectionDetails> connectionMappingList;
+        if (context != null && !context.isRecorded())
+        {
+            connectionMappingList = context.getHopMappedPorts();
+            connectionMappingList.clear();
+        }
+        else
+        {
+            connectionMappingList = new ArrayList<>(connections.size());
         }
-        connectionMap.values().stream().forEach((PortConnectionDetails portConnection) ->
+        for (int i = 0; i < connections.size(); i++)
         {
+            PortConnectionDetails portConnection = connections.get(i);
+            if (context != null)
+            {
+                context.addIncomingFrequencies(portConnection, outgoing.get(i));
+            }
+            else
+            {
+                portConnection.getIncomingFrequencyRanges().clear();
+                portConnection.getIncomingFrequencyRanges().addAll(outgoing.get(i).toRanges());
+            }
             connectionMappingList.add(portConnection);
-        });
+        }
         return connectionMappingList;
     }
 
@@ -287,6 +407,22 @@ public abstract class CellConnectivityHelper
      * allowed on the receiving device. There is a fit if there is any overlap
      * between the ranges.
      *
+     * @param frequencies The frequencies that have arrived at this device
+     * @param min         The minimum frequency that this device allows
+     * @param max         The maximum frequency that this device allows
+     * @return true if there is an overlap between any of the frequencies
+     *         provided and the min / max on this device. A NaN bound never
+     *         fits.
+     */
+    protected static boolean isFrequencyFit(FrequencyIntervalSet frequencies, double min, double max)
+    {
+        return frequencies.overlaps(min, max);
+    }
+
+    /**
+     * As {@link #isFrequencyFit(FrequencyIntervalSet, double, double)}, for a
+     * list of frequency ranges.
+     *
      * @param frequencyRanges The list of frequency ranges that have arrived at
      *                        this device
      * @param min             The minimum frequency that this device allows
@@ -324,27 +460,41 @@ public abstract class CellConnectivityHelper
     
     public static String getAntennaCellInfo(Antenna antenna)
     {
-        List<Port> portList = new ArrayList();
-        List<String> mobileCellList = new ArrayList();
-        List<CellConnectionDetails> traceMobilesCellList = antenna.getCellConnectionDetails();       
-        for (CellConnectionDetails cellConnectionDetails : traceMobilesCellList)
+        List<MobilesCell> mobileCellList = new ArrayList<>();
+        for (CellConnectionDetails cellConnectionDetails : antenna.getCellConnectionDetails())
         {
-            if (cellConnectionDetails.getMobilesCell() != null && !mobileCellList.contains(cellConnectionDetails.getMobilesCell().getName()))
-                mobileCellList.add(cellConnectionDetails.getMobilesCell().getName());
+            if (cellConnectionDetails.getMobilesCell() != null)
+                mobileCellList.add(cellConnectionDetails.getMobilesCell());
         }
-        
-        if (!mobileCellList.isEmpty())
-        {    
-            String allMobileCells = "(Cells : ";
-            for (String s : mobileCellList)
-            {
-                allMobileCells = allMobileCells.concat(s + ";");
-            }
-            allMobileCells = allMobileCells.substring(0, allMobileCells.length()-1);
-            allMobileCells = allMobileCells.concat(")");
-            return allMobileCells;
+        return formatCellInfo(mobileCellList);
+    }
+
+    /**
+     * Builds the label of the cells of an antenna, listing each cell name
+     * once.
+     *
+     * @param cells the cells of the antenna
+     * @return the label, or null if there are no cells
+     */
+    static String formatCellInfo(Collection<MobilesCell> cells)
+    {
+        Set<String> names = new LinkedHashSet<>();
+        for (MobilesCell cell : cells)
+        {
+            if (cell != null)
+                names.add(cell.getName());
         }
-        
-        return null;
-    }  
+        if (names.isEmpty())
+        {
+            return null;
+        }
+
+        StringBuilder allMobileCells = new StringBuilder("(Cells : ");
+        for (String s : names)
+        {
+            allMobileCells.append(s).append(';');
+        }
+        allMobileCells.setLength(allMobileCells.length() - 1);
+        return allMobileCells.append(')').toString();
+    }
 }
@@ -0,0 +1,633 @@
+/*
+ * Copyright 2015 Telstra Corporation.
+ *
+ * This program is the property of Telstra Corporation.
+ * You may not use this code without the express permission of
+ * the designated business owner of the software in Telstra.
+ * Parts of this program are copyright Dialog Information Technology
+ * and licensed for the use of Telstra Corporation as part of this
+ * software.
+ */
+package canrad.celltrace;
+
+import canrad.geometry.components.Antenna;
+import canrad.geometry.components.DeviceBase;
+import canrad.geometry.components.Feeder;
+import canrad.geometry.components.JunctionDevice;
+import canrad.geometry.components.Port;
+import canrad.geometry.components.SiteExport;
+import canrad.geometry.components.Transceiver;
+import canrad.layout.models.PortConnectionDetails;
+import java.lang.ref.WeakReference;
+import canrad.reference.components.JunctionDeviceTypeIntPortMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The ConnectivityGraph class is an immutable, compiled view of the feeder
+ * connectivity of a site, with every device, port and feeder given an int
+ * ordinal. A graph is compiled once per {@link SiteExport} and must be
+ * invalidated when the feeders or devices of the site are edited.
+ *
+ * @author
+ */
+public final class ConnectivityGraph
+{
+    public static final byte DEVICE_OTHER = 0;
+    public static final byte DEVICE_ANTENNA = 1;
+    public static final byte DEVICE_TRANSCEIVER = 2;
+    public static final byte DEVICE_JUNCTION = 3;
+
+    public static final int FEEDER_RET = 1;
+
+    public static final int NONE = -1;
+
+    private static final Map<SiteExport, ConnectivityGraph> siteGraphs = new WeakHashMap<>();
+    // The site each device was last compiled in, so that a caller with only a device finds its graph
+    private static final Map<DeviceBase, WeakReference<SiteExport>> deviceSites = new WeakHashMap<>();
+
+    private final DeviceBase[] devices;
+    private final byte[] deviceKinds;
+    private final int[] devicePortStart;
+
+    private final Port[] ports;
+    private final int[] portDevices;
+    private final int[] portFeeders;
+    private final int[] portPeers;
+    private final PortConnectionDetails[] portConnections;
+
+    private final Feeder[] feeders;
+    private final int[] feederFlags;
+
+    // The internal port mappings of the junction devices, with the graph
+    // ordinal of the port each mapping row of a port leads to
+    private final JunctionMappingIndex[] deviceMappings;
+    private final int[] portInputs;
+    private final int[] portTargetStart;
+    private final int[] mappingTargets;
+
+    // Chains of junction devices that pass every frequency through a single
+    // mapping, folded into one edge: the outgoing port of each hop
+    private final int[] chainStart;
+    private final int[] chainEnd;
+    private final int[] chainHops;
+
+    // Built on first use, and discarded when a segment of the site is edited
+    private volatile SiteReferenceData referenceData;
+
+    private final Map<DeviceBase, Integer> deviceIndex;
+    private final Map<Port, Integer> portIndex;
+    private final Map<Feeder, Integer> feederIndex;
+
+    private ConnectivityGraph(List<DeviceBase> deviceList, List<List<PortConnectionDetails>> connectionLists)
+    {
+        int deviceCount = deviceList.size();
+        devices = deviceList.toArray(new DeviceBase[deviceCount]);
+        deviceKinds = new byte[deviceCount];
+        devicePortStart = new int[deviceCount + 1];
+        deviceIndex = new IdentityHashMap<>(deviceCount * 2);
+
+        int portCount = 0;
+        for (int d = 0; d < deviceCount; d++)
+        {
+            deviceIndex.put(devices[d], d);
+            deviceKinds[d] = kindOf(devices[d]);
+            devicePortStart[d] = portCount;
+            portCount += connectionLists.get(d).size();
+        }
+        devicePortStart[deviceCount] = portCount;
+
+        ports = new Port[portCount];
+        portDevices = new int[portCount];
+        portFeeders = new int[portCount];
+        portPeers = new int[portCount];
+        portConnections = new PortConnectionDetails[portCount];
+        portIndex = new IdentityHashMap<>(portCount * 2);
+        feederIndex = new IdentityHashMap<>();
+
+        List<Feeder> feederList = new ArrayList<>();
+        int p = 0;
+        for (int d = 0; d < deviceCount; d++)
+        {
+            for (PortConnectionDetails connection : connectionLists.get(d))
+            {
+                ports[p] = connection.getPort();
+                portDevices[p] = d;
+                portConnections[p] = connection;
+                portIndex.put(connection.getPort(), p);
+
+                Feeder feeder = connection.getFeeder();
+                if (feeder == null)
+                {
+                    portFeeders[p] = NONE;
+                }
+                else
+                {
+                    Integer f = feederIndex.get(feeder);
+                    if (f == null)
+                    {
+                        f = feederList.size();
+                        feederIndex.put(feeder, f);
+                        feederList.add(feeder);
+                    }
+                    portFeeders[p] = f;
+                }
+                p++;
+            }
+        }
+
+        // Resolve the far end of each feeder once all the ports have ordinals
+        for (p = 0; p < portCount; p++)
+        {
+            Port connectedPort = portConnections[p].getConnectedPort();
+            Integer peer = connectedPort == null ? null : portIndex.get(connectedPort);
+            portPeers[p] = peer == null ? NONE : peer;
+        }
+
+        // Resolve the rows of the internal port mappings of each junction device port
+        deviceMappings = new JunctionMappingIndex[deviceCount];
+        portInputs = new int[portCount];
+        portTargetStart = new int[portCount + 1];
+        int[] targets = new int[portCount];
+        int targetCount = 0;
+        for (int d = 0; d < deviceCount; d++)
+        {
+            JunctionMappingIndex index = null;
+            if (deviceKinds[d] == DEVICE_JUNCTION)
+            {
+                index = JunctionMappingIndex.forType(((JunctionDevice) devices[d]).getTypeCode());
+                deviceMappings[d] = index;
+            }
+            for (p = devicePortStart[d]; p < devicePortStart[d + 1]; p++)
+            {
+                portTargetStart[p] = targetCount;
+                portInputs[p] = index == null ? NONE : index.indexOf(ports[p].getTypePortId());
+                if (portInputs[p] == NONE)
+                    continue;
+                for (int row = index.getFirstMapping(portInputs[p]); row < index.getEndMapping(portInputs[p]); row++)
+                {
+                    Port target = ((JunctionDevice) devices[d]).getPortByTypePortId(index.getOtherPortTypeId(row));
+                    Integer t = target == null ? null : portIndex.get(target);
+                    if (targetCount == targets.length)
+                        targets = Arrays.copyOf(targets, targetCount * 2 + 1);
+                    targets[targetCount++] = t == null ? NONE : t;
+                }
+            }
+        }
+        portTargetStart[portCount] = targetCount;
+        mappingTargets = Arrays.copyOf(targets, targetCount);
+
+        // Fold the unfiltered junction device chains. The hops of a chain are
+        // stored once and each port of the chain starts at its own hop, so the
+        // chains are walked from their first port before the ports they lead
+        // to; the ports left over are on chains that loop.
+        chainStart = new int[portCount];
+        chainEnd = new int[portCount];
+        Arrays.fill(chainStart, NONE);
+        boolean[] continued = new boolean[portCount];
+        for (p = 0; p < portCount; p++)
+        {
+            int next = nextInChain(p);
+            if (next != NONE)
+                continued[next] = true;
+        }
+        int[] hops = new int[16];
+        int hopCount = 0;
+        int[] walked = new int[16];
+        for (int pass = 0; pass < 2; pass++)
+        {
+            for (p = 0; p < portCount; p++)
+            {
+                if (chainStart[p] != NONE || !isUnfiltered(p) || (pass == 0 && continued[p]))
+                    continue;
+                int base = hopCount;
+                int walkedCount = 0;
+                int q = p;
+                while (true)
+                {
+                    if (hopCount == hops.length)
+                        hops = Arrays.copyOf(hops, hopCount * 2);
+                    if (walkedCount == walked.length)
+                        walked = Arrays.copyOf(walked, walkedCount * 2);
+                    chainStart[q] = hopCount;
+                    hops[hopCount++] = unfilteredTarget(q);
+                    walked[walkedCount++] = q;
+
+                    int next = nextInChain(q);
+                    if (next == NONE)
+                        break;
+                    if (chainStart[next] != NONE)
+                    {
+                        // Joins a chain stored earlier, share its remaining hops
+                        if (chainStart[next] < base)
+                        {
+                            int length = chainEnd[next] - chainStart[next];
+                            if (hopCount + length > hops.length)
+                                hops = Arrays.copyOf(hops, (hopCount + length) * 2);
+                            System.arraycopy(hops, chainStart[next], hops, hopCount, length);
+                            hopCount += length;
+                        }
+                        break;
+                    }
+                    q = next;
+                }
+                for (int i = 0; i < walkedCount; i++)
+                {
+                    chainEnd[walked[i]] = hopCount;
+                }
+            }
+        }
+        chainHops = Arrays.copyOf(hops, hopCount);
+
+        feeders = feederList.toArray(new Feeder[feederList.size()]);
+        feederFlags = new int[feeders.length];
+        for (int f = 0; f < feeders.length; f++)
+        {
+            if (feeders[f].getAttributes().contains("RET"))
+            {
+                feederFlags[f] |= FEEDER_RET;
+            }
+        }
+    }
+
+    /**
+     * Returns the compiled graph for the site, compiling it on first use.
+     *
+     * @param siteExport the site to be compiled
+     * @return the connectivity graph of the site
+     */
+    public static ConnectivityGraph forSite(SiteExport siteExport)
+    {
+        synchronized (siteGraphs)
+        {
+            ConnectivityGraph graph = siteGraphs.get(siteExport);
+            if (graph == null)
+            {
+                List<DeviceBase> seeds = new ArrayList<>();
+                seeds.addAll(siteExport.getTransceiversNoAddRemove());
+                seeds.addAll(siteExport.getAntennasNoAddRemove());
+                graph = compile(seeds);
+                siteGraphs.put(siteExport, graph);
+                WeakReference<SiteExport> site = new WeakReference<>(siteExport);
+                for (DeviceBase device : graph.devices)
+                {
+                    deviceSites.put(device, site);
+                }
+            }
+            return graph;
+        }
+    }
+
+    /**
+     * Returns the compiled graph of the site that contains the device, for a
+     * caller that only has the device.
+     *
+     * @param device the device
+     * @return the graph of the site, or null if no site compiled so far
+     *         contains the device
+     */
+    public static ConnectivityGraph forDevice(DeviceBase device)
+    {
+        synchronized (siteGraphs)
+        {
+            WeakReference<SiteExport> site = deviceSites.get(device);
+            SiteExport siteExport = site == null ? null : site.get();
+            if (siteExport == null)
+                return null;
+            // The device may have been removed from the site since it was compiled
+            ConnectivityGraph graph = forSite(siteExport);
+            return graph.indexOf(device) != NONE ? graph : null;
+        }
+    }
+
+    /**
+     * Discards the compiled graph of the site so that the next call to
+     * {@link #forSite(SiteExport)} recompiles it. Must be called whenever a
+     * feeder, port or device of the site is added, removed or reconnected.
+     *
+     * @param siteExport the site that has been edited
+     */
+    public static void invalidate(SiteExport siteExport)
+    {
+        synchronized (siteGraphs)
+        {
+            siteGraphs.remove(siteExport);
+        }
+    }
+
+    /**
+     * Discards the reference data of the compiled graph of the site. Must be
+     * called whenever a segment of the site is added, removed or edited.
+     *
+     * @param siteExport the site that has been edited
+     */
+    public static void invalidateReferenceData(SiteExport siteExport)
+    {
+        synchronized (siteGraphs)
+        {
+            ConnectivityGraph graph = siteGraphs.get(siteExport);
+            if (graph != null)
+                graph.referenceData = null;
+        }
+    }
+
+    /**
+     * Compiles the graph of all the devices reachable through feeders from the
+     * given seed devices.
+     *
+     * @param seeds the devices to start the discovery from
+     * @return the compiled graph
+     */
+    public static ConnectivityGraph compile(Collection<? extends DeviceBase> seeds)
+    {
+        Map<DeviceBase, Boolean> discovered = new IdentityHashMap<>();
+        List<DeviceBase> deviceList = new ArrayList<>();
+        List<List<PortConnectionDetails>> connectionLists = new ArrayList<>();
+        Deque<DeviceBase> queue = new ArrayDeque<>();
+
+        for (DeviceBase seed : seeds)
+        {
+            if (seed != null && discovered.put(seed, Boolean.TRUE) == null)
+            {
+                queue.add(seed);
+            }
+        }
+        while (!queue.isEmpty())
+        {
+            DeviceBase device = queue.poll();
+            List<PortConnectionDetails> connections = device.buildPortConnectionsList();
+            if (connections == null)
+            {
+                connections = Collections.emptyList();
+            }
+            deviceList.add(device);
+            connectionLists.add(connections);
+            for (PortConnectionDetails connection : connections)
+            {
+                DeviceBase connectedDevice = connection.getConnectedDevice();
+                if (connectedDevice != null && discovered.put(connectedDevice, Boolean.TRUE) == null)
+                {
+                    queue.add(connectedDevice);
+                }
+            }
+        }
+        return new ConnectivityGraph(deviceList, connectionLists);
+    }
+
+    private static byte kindOf(DeviceBase device)
+    {
+        if (device instanceof Antenna)
+            return DEVICE_ANTENNA;
+        if (device instanceof Transceiver)
+            return DEVICE_TRANSCEIVER;
+        if (device instanceof JunctionDevice)
+            return DEVICE_JUNCTION;
+        return DEVICE_OTHER;
+    }
+
+    /**
+     * @return the reference data of the segments of the devices of the graph,
+     *         resolved on first use
+     */
+    public SiteReferenceData getReferenceData()
+    {
+        SiteReferenceData data = referenceData;
+        if (data == null)
+        {
+            synchronized (this)
+            {
+                data = referenceData;
+                if (data == null)
+                    referenceData = data = new SiteReferenceData(this);
+            }
+        }
+        return data;
+    }
+
+    public int getDeviceCount()
+    {
+        return devices.length;
+    }
+
+    public int getPortCount()
+    {
+        return ports.length;
+    }
+
+    public int getFeederCount()
+    {
+        return feeders.length;
+    }
+
+    public DeviceBase getDevice(int device)
+    {
+        return devices[device];
+    }
+
+    public byte getDeviceKind(int device)
+    {
+        return deviceKinds[device];
+    }
+
+    /**
+     * @param device the device ordinal
+     * @return the ordinal of the first port of the device. The ports of a
+     *         device are contiguous and end at the first port of the next
+     *         device.
+     */
+    public int getFirstPort(int device)
+    {
+        return devicePortStart[device];
+    }
+
+    public int getEndPort(int device)
+    {
+        return devicePortStart[device + 1];
+    }
+
+    public Port getPort(int port)
+    {
+        return ports[port];
+    }
+
+    public int getPortDevice(int port)
+    {
+        return portDevices[port];
+    }
+
+    public int getPortFeeder(int port)
+    {
+        return portFeeders[port];
+    }
+
+    /**
+     * @param port the port ordinal
+     * @return the ordinal of the port on the other end of the feeder connected
+     *         to the port, or {@link #NONE} if it is not connected
+     */
+    public int getPeerPort(int port)
+    {
+        return portPeers[port];
+    }
+
+    public PortConnectionDetails getConnection(int port)
+    {
+        return portConnections[port];
+    }
+
+    public Feeder getFeeder(int feeder)
+    {
+        return feeders[feeder];
+    }
+
+    public boolean hasFeederFlag(int feeder, int flag)
+    {
+        return (feederFlags[feeder] & flag) != 0;
+    }
+
+    public int indexOf(DeviceBase device)
+    {
+        Integer index = deviceIndex.get(device);
+        return index == null ? NONE : index;
+    }
+
+    public int indexOf(Port port)
+    {
+        Integer index = portIndex.get(port);
+        return index == null ? NONE : index;
+    }
+
+    public int indexOf(Feeder feeder)
+    {
+        Integer index = feederIndex.get(feeder);
+        return index == null ? NONE : index;
+    }
+
+    /**
+     * Retrieve the compiled connection details for a port.
+     *
+     * @param port the port
+     * @return the connection details, or null if the port is not part of the
+     *         graph
+     */
+    public PortConnectionDetails getConnection(Port port)
+    {
+        Integer index = portIndex.get(port);
+        return index == null ? null : portConnections[index];
+    }
+
+    /**
+     * @param device the device ordinal
+     * @return the internal port mappings of the device, or null if the device
+     *         is not a junction device
+     */
+    public JunctionMappingIndex getMappingIndex(int device)
+    {
+        return deviceMappings[device];
+    }
+
+    /**
+     * @param port the port ordinal
+     * @return the input ordinal of the port in the mapping index of its
+     *         device, or {@link #NONE} if no mapping leaves the port
+     */
+    public int getMappingInput(int port)
+    {
+        return portInputs[port];
+    }
+
+    /**
+     * @param port the port ordinal
+     * @param row  a mapping row of the input of the port
+     * @return the ordinal of the port the mapping row leads to, or
+     *         {@link #NONE} if that port is not part of the graph
+     */
+    public int getMappingTarget(int port, int row)
+    {
+        JunctionMappingIndex index = deviceMappings[portDevices[port]];
+        return mappingTargets[portTargetStart[port] + row - index.getFirstMapping(portInputs[port])];
+    }
+
+    /**
+     * @param port the port ordinal of a junction device input port
+     * @return the first hop of the chain of unfiltered junction devices that
+     *         starts at the port, or {@link #NONE} if the device at the port
+     *         filters the frequencies or maps them to several ports
+     */
+    public int getChainStart(int port)
+    {
+        return chainStart[port];
+    }
+
+    public int getChainEnd(int port)
+    {
+        return chainEnd[port];
+    }
+
+    /**
+     * @param hop the hop of a chain
+     * @return the ordinal of the port the hop leaves its junction device
+     *         through. The next hop starts at the peer of that port.
+     */
+    public int getChainHop(int hop)
+    {
+        return chainHops[hop];
+    }
+
+    /**
+     * @param port the port ordinal of a junction device input port
+     * @return the mapping that leads out of the port, for a port that starts a
+     *         chain
+     */
+    public JunctionDeviceTypeIntPortMap getChainMapping(int port)
+    {
+        JunctionMappingIndex index = deviceMappings[portDevices[port]];
+        return index.getMapping(index.getFirstMapping(portInputs[port]));
+    }
+
+    /**
+     * @return true if the port enters a junction device through a single
+     *         mapping that passes every frequency to a port of the graph
+     */
+    private boolean isUnfiltered(int port)
+    {
+        JunctionMappingIndex index = deviceMappings[portDevices[port]];
+        int input = portInputs[port];
+        if (index == null || input == NONE || index.getEndMapping(input) - index.getFirstMapping(input) != 1)
+            return false;
+        int row = index.getFirstMapping(input);
+        return index.isPass(row) && !index.hasFrequencies(row) && mappingTargets[portTargetStart[port]] != NONE;
+    }
+
+    private int unfilteredTarget(int port)
+    {
+        return mappingTargets[portTargetStart[port]];
+    }
+
+    /**
+     * @return the port the chain through an unfiltered port continues at, or
+     *         {@link #NONE} if the chain ends there
+     */
+    private int nextInChain(int port)
+    {
+        if (!isUnfiltered(port))
+            return NONE;
+        int out = unfilteredTarget(port);
+        int next = portFeeders[out] == NONE ? NONE : portPeers[out];
+        return next != NONE && isUnfiltered(next) ? next : NONE;
+    }
+
+    public boolean isRet(Feeder feeder)
+    {
+        Integer index = feederIndex.get(feeder);
+        return index != null && (feederFlags[index] & FEEDER_RET) != 0;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2015 Telstra Corporation.
+ *
+ * This program is the property of Telstra Corporation.
+ * You may not use this code without the express permission of
+ * the designated business owner of the software in Telstra.
+ * Parts of this program are copyright Dialog Information Technology
+ * and licensed for the use of Telstra Corporation as part of this
+ * software.
+ */
+package canrad.celltrace;
+
+import canrad.layout.models.FrequencyRange;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The FrequencyIntervalSet class is an immutable set of closed frequency
+ * intervals, held as sorted pairs of bounds in a single double array.
+ *
+ * @author
+ */
+public final class FrequencyIntervalSet
+{
+    public static final FrequencyIntervalSet EMPTY = new FrequencyIntervalSet(new double[0]);
+
+    // lower and upper bound of each interval, sorted and disjoint
+    private final double[] bounds;
+
+    private FrequencyIntervalSet(double[] bounds)
+    {
+        this.bounds = bounds;
+    }
+
+    /**
+     * @param min the lower bound
+     * @param max the upper bound
+     * @return the set holding the single interval, or the empty set if either
+     *         bound is missing or min is greater than max
+     */
+    public static FrequencyIntervalSet of(Double min, Double max)
+    {
+        if (min == null || max == null || min > max)
+            return EMPTY;
+        return new FrequencyIntervalSet(new double[] { min, max });
+    }
+
+    public static FrequencyIntervalSet of(FrequencyRange range)
+    {
+        return range == null ? EMPTY : of(range.getMinFrequency(), range.getMaxFrequency());
+    }
+
+    public static FrequencyIntervalSet of(List<FrequencyRange> ranges)
+    {
+        double[] pairs = new double[ranges.size() * 2];
+        int size = 0;
+        for (FrequencyRange range : ranges)
+        {
+            Double min = range.getMinFrequency();
+            Double max = range.getMaxFrequency();
+            if (min != null && max != null && min <= max)
+            {
+                pairs[size++] = min;
+                pairs[size++] = max;
+            }
+        }
+        return normalize(pairs, size);
+    }
+
+    public boolean isEmpty()
+    {
+        return bounds.length == 0;
+    }
+
+    /**
+     * @return the number of disjoint intervals in the set
+     */
+    public int size()
+    {
+        return bounds.length / 2;
+    }
+
+    public double getMinFrequency(int interval)
+    {
+        return bounds[interval * 2];
+    }
+
+    public double getMaxFrequency(int interval)
+    {
+        return bounds[interval * 2 + 1];
+    }
+
+    /**
+     * Calculates whether there is any overlap between the set and the given
+     * range. The interval that could overlap is found by a binary search on
+     * the upper bounds.
+     *
+     * @param min the minimum frequency of the range
+     * @param max the maximum frequency of the range
+     * @return true if an interval of the set overlaps the range
+     */
+    public boolean overlaps(double min, double max)
+    {
+        int low = 0;
+        int high = size();
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (bounds[mid * 2 + 1] < min)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low < size() && bounds[low * 2] <= max;
+    }
+
+    /**
+     * Calculates whether every frequency of another set is in this set, which
+     * is when their union is this set, without building the union. Both sets
+     * are swept once together.
+     *
+     * @param other the other set
+     * @return true if each interval of the other set lies inside an interval
+     *         of this set
+     */
+    public boolean containsAll(FrequencyIntervalSet other)
+    {
+        int i = 0;
+        for (int j = 0; j < other.bounds.length; j += 2)
+        {
+            while (i < bounds.length && bounds[i + 1] < other.bounds[j])
+            {
+                i += 2;
+            }
+            if (i == bounds.length || bounds[i] > other.bounds[j] || bounds[i + 1] < other.bounds[j + 1])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The frequencies that pass a PASS mapping.
+     *
+     * @param min the minimum frequency of the mapping
+     * @param max the maximum frequency of the mapping
+     * @return the part of the set inside the range
+     */
+    public FrequencyIntervalSet intersect(double min, double max)
+    {
+        if (isEmpty() || min > max)
+            return EMPTY;
+        if (bounds[0] >= min && bounds[bounds.length - 1] <= max)
+            return this;
+        double[] result = new double[bounds.length];
+        int size = 0;
+        for (int i = 0; i < bounds.length; i += 2)
+        {
+            if (bounds[i] <= max && bounds[i + 1] >= min)
+            {
+                result[size++] = Math.max(bounds[i], min);
+                result[size++] = Math.min(bounds[i + 1], max);
+            }
+        }
+        return size == 0 ? EMPTY : new FrequencyIntervalSet(Arrays.copyOf(result, size));
+    }
+
+    /**
+     * The frequencies that pass a STOP mapping.
+     *
+     * @param min the minimum frequency of the mapping
+     * @param max the maximum frequency of the mapping
+     * @return the part of the set outside the range
+     */
+    public FrequencyIntervalSet subtract(double min, double max)
+    {
+        if (isEmpty() || min > max || !overlaps(min, max))
+            return this;
+        double[] result = new double[bounds.length + 2];
+        int size = 0;
+        for (int i = 0; i < bounds.length; i += 2)
+        {
+            double lower = bounds[i];
+            double upper = bounds[i + 1];
+            if (lower < min)
+            {
+                result[size++] = lower;
+                result[size++] = Math.min(upper, min);
+            }
+            if (upper > max)
+            {
+                result[size++] = Math.max(lower, max);
+                result[size++] = upper;
+            }
+        }
+        return normalize(result, size);
+    }
+
+    /**
+     * @param other the set to be merged
+     * @return the frequencies in either set
+     */
+    public FrequencyIntervalSet union(FrequencyIntervalSet other)
+    {
+        if (other.isEmpty())
+            return this;
+        if (isEmpty())
+            return other;
+        double[] pairs = Arrays.copyOf(bounds, bounds.length + other.bounds.length);
+        System.arraycopy(other.bounds, 0, pairs, bounds.length, other.bounds.length);
+        return normalize(pairs, pairs.length);
+    }
+
+    /**
+     * @return the intervals of the set as frequency ranges, for the cell
+     *         connectivity tree view
+     */
+    public List<FrequencyRange> toRanges()
+    {
+        List<FrequencyRange> ranges = new ArrayList<>(size());
+        for (int i = 0; i < bounds.length; i += 2)
+        {
+            ranges.add(new FrequencyRange(bounds[i], bounds[i + 1]));
+        }
+        return ranges;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return obj instanceof FrequencyIntervalSet && Arrays.equals(bounds, ((FrequencyIntervalSet) obj).bounds);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(bounds);
+    }
+
+    /**
+     * Sorts the pairs by lower bound and merges the intervals that overlap or
+     * touch.
+     */
+    private static FrequencyIntervalSet normalize(double[] pairs, int size)
+    {
+        if (size == 0)
+            return EMPTY;
+        int count = size / 2;
+        boolean sorted = true;
+        for (int i = 2; i < size && sorted; i += 2)
+        {
+            sorted = pairs[i - 2] <= pairs[i];
+        }
+        if (!sorted)
+        {
+            // Sort the pairs by their lower bound with an insertion sort, the sets are small
+            for (int i = 1; i < count; i++)
+            {
+                double lower = pairs[i * 2];
+                double upper = pairs[i * 2 + 1];
+                int j = i - 1;
+                while (j >= 0 && pairs[j * 2] > lower)
+                {
+                    pairs[j * 2 + 2] = pairs[j * 2];
+                    pairs[j * 2 + 3] = pairs[j * 2 + 1];
+                    j--;
+                }
+                pairs[j * 2 + 2] = lower;
+                pairs[j * 2 + 3] = upper;
+            }
+        }
+        int merged = 0;
+        for (int i = 0; i < size; i += 2)
+        {
+            if (merged > 0 && pairs[i] <= pairs[merged - 1])
+            {
+                pairs[merged - 1] = Math.max(pairs[merged - 1], pairs[i + 1]);
+            }
+            else
+            {
+                pairs[merged++] = pairs[i];
+                pairs[merged++] = pairs[i + 1];
+            }
+        }
+        return new FrequencyIntervalSet(merged == pairs.length ? pairs : Arrays.copyOf(pairs, merged));
+    }
+}
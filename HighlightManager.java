@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Telstra Corporation.
+ *
+ * This program is the property of Telstra Corporation.
+ * You may not use this code without the express permission of
+ * the designated business owner of the software in Telstra.
+ * Parts of this program are copyright Dialog Information Technology
+ * and licensed for the use of Telstra Corporation as part of this
+ * software.
+ */
+package canrad.celltrace;
+
+import dialog.geometry.viewmodel.ModelVisualState;
+import dialog.geometry.visuals.InteractiveVisualLocation;
+import dialog.geometry.visuals.ViewportStupid;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HighlightManager class keeps the highlight applied to each visual
+ * location, and only changes the locations whose highlight differs when a
+ * new set is committed.
+ *
+ * @author
+ */
+public final class HighlightManager
+{
+    private final ModelVisualState baseState;
+    private final Map<InteractiveVisualLocation, ModelVisualState> applied = new IdentityHashMap<>();
+    private Map<InteractiveVisualLocation, ModelVisualState> frame;
+
+    /**
+     * @param baseState the visual state that is mapped to the highlight
+     */
+    public HighlightManager(ModelVisualState baseState)
+    {
+        this.baseState = baseState;
+    }
+
+    /**
+     * Starts a frame that replaces all the applied highlights.
+     */
+    public void beginFrame()
+    {
+        frame = new IdentityHashMap<>();
+    }
+
+    /**
+     * Starts a frame that keeps the applied highlights unless they are
+     * changed or removed.
+     */
+    public void beginUpdate()
+    {
+        frame = new IdentityHashMap<>(applied);
+    }
+
+    /**
+     * Highlights the location in the current frame; a later highlight of the
+     * same location replaces it.
+     */
+    public void highlight(InteractiveVisualLocation vl, ModelVisualState state)
+    {
+        frame.put(vl, state);
+    }
+
+    public void remove(InteractiveVisualLocation vl)
+    {
+        frame.remove(vl);
+    }
+
+    /**
+     * Applies the difference between the current frame and the applied
+     * highlights in a single transaction and makes the frame the applied
+     * highlights.
+     */
+    public void commit(ViewportStupid viewport, String usage)
+    {
+        VisualStateTransaction transaction = new VisualStateTransaction();
+        for (Map.Entry<InteractiveVisualLocation, ModelVisualState> e : applied.entrySet())
+        {
+            if (!frame.containsKey(e.getKey()))
+                transaction.extractVisualStateMap(e.getKey(), baseState, viewport, usage);
+        }
+        for (Map.Entry<InteractiveVisualLocation, ModelVisualState> e : frame.entrySet())
+        {
+            ModelVisualState previous = applied.get(e.getKey());
+            if (previous == e.getValue())
+                continue;
+            if (previous != null)
+                transaction.extractVisualStateMap(e.getKey(), baseState, viewport, usage);
+            transaction.addVisualStateMap(e.getKey(), baseState, e.getValue(), viewport, usage);
+        }
+        transaction.commit();
+        applied.clear();
+        applied.putAll(frame);
+        frame = null;
+    }
+
+    /**
+     * Removes all the applied highlights.
+     */
+    public void clear(ViewportStupid viewport, String usage)
+    {
+        beginFrame();
+        commit(viewport, usage);
+    }
+
+    public boolean isEmpty()
+    {
+        return applied.isEmpty();
+    }
+
+    /**
+     * @return the highlighted locations, each once
+     */
+    public List<InteractiveVisualLocation> getHighlighted()
+    {
+        return new ArrayList<>(applied.keySet());
+    }
+}
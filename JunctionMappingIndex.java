@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 Telstra Corporation.
+ *
+ * This program is the property of Telstra Corporation.
+ * You may not use this code without the express permission of
+ * the designated business owner of the software in Telstra.
+ * Parts of this program are copyright Dialog Information Technology
+ * and licensed for the use of Telstra Corporation as part of this
+ * software.
+ */
+package canrad.celltrace;
+
+import canrad.reference.components.CanradLibrary;
+import canrad.reference.components.JunctionDeviceTypeIntPortMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The JunctionMappingIndex class is the compiled form of the internal port
+ * mappings of a junction device type, held in rows by input port. An index is
+ * compiled once per device type code and library instance.
+ *
+ * @author
+ */
+public final class JunctionMappingIndex
+{
+    // The most transfer outcomes remembered for one input port
+    public static final int MAX_TRANSFERS = 64;
+
+    private static final Map<String, JunctionMappingIndex> typeIndexes = new HashMap<>();
+    private static CanradLibrary typeLibrary;
+
+    private final String deviceTypeCode;
+    private final Map<String, Integer> inputIndex;
+    private final String[] inputPortTypeIds;
+    private final int[] inputRowStart;
+
+    private final JunctionDeviceTypeIntPortMap[] mappings;
+    private final String[] otherPortTypeIds;
+    private final boolean[] passes;
+    private final boolean[] bounded;
+    private final double[] minFrequencies;
+    private final double[] maxFrequencies;
+
+    private final List<Map<FrequencyIntervalSet, FrequencyIntervalSet[]>> transfers;
+
+    private JunctionMappingIndex(String deviceTypeCode, List<JunctionDeviceTypeIntPortMap> portMappings)
+    {
+        this.deviceTypeCode = deviceTypeCode;
+
+        // Collect the rows of each input port, keeping the order of the library
+        inputIndex = new HashMap<>();
+        List<List<JunctionDeviceTypeIntPortMap>> inputMappings = new ArrayList<>();
+        List<List<String>> inputOthers = new ArrayList<>();
+        for (JunctionDeviceTypeIntPortMap mapping : portMappings)
+        {
+            String portA = mapping.getPortA();
+            String portB = mapping.getPortB();
+            if (portA == null || portB == null)
+                continue;
+            addRow(portA, portB, mapping, inputMappings, inputOthers);
+            if (!portB.equals(portA))
+                addRow(portB, portA, mapping, inputMappings, inputOthers);
+        }
+
+        int inputCount = inputMappings.size();
+        inputPortTypeIds = new String[inputCount];
+        for (Map.Entry<String, Integer> e : inputIndex.entrySet())
+        {
+            inputPortTypeIds[e.getValue()] = e.getKey();
+        }
+        inputRowStart = new int[inputCount + 1];
+        int rowCount = 0;
+        for (int i = 0; i < inputCount; i++)
+        {
+            inputRowStart[i] = rowCount;
+            rowCount += inputMappings.get(i).size();
+        }
+        inputRowStart[inputCount] = rowCount;
+        transfers = new ArrayList<>(inputCount);
+        for (int i = 0; i < inputCount; i++)
+        {
+            transfers.add(new ConcurrentHashMap<>());
+        }
+
+        mappings = new JunctionDeviceTypeIntPortMap[rowCount];
+        otherPortTypeIds = new String[rowCount];
+        passes = new boolean[rowCount];
+        bounded = new boolean[rowCount];
+        minFrequencies = new double[rowCount];
+        maxFrequencies = new double[rowCount];
+        int row = 0;
+        for (int i = 0; i < inputCount; i++)
+        {
+            List<String> others = inputOthers.get(i);
+            List<JunctionDeviceTypeIntPortMap> rows = inputMappings.get(i);
+            for (int r = 0; r < rows.size(); r++, row++)
+            {
+                JunctionDeviceTypeIntPortMap mapping = rows.get(r);
+                mappings[row] = mapping;
+                otherPortTypeIds[row] = others.get(r);
+                passes[row] = "PASS".equalsIgnoreCase(mapping.getPassOrStop());
+                bounded[row] = mapping.getMinFrequency() != null && mapping.getMaxFrequency() != null;
+                if (bounded[row])
+                {
+                    minFrequencies[row] = mapping.getMinFrequency();
+                    maxFrequencies[row] = mapping.getMaxFrequency();
+                }
+            }
+        }
+    }
+
+    private void addRow(String input, String other, JunctionDeviceTypeIntPortMap mapping,
+            List<List<JunctionDeviceTypeIntPortMap>> inputMappings, List<List<String>> inputOthers)
+    {
+        Integer i = inputIndex.get(input);
+        if (i == null)
+        {
+            i = inputMappings.size();
+            inputIndex.put(input, i);
+            inputMappings.add(new ArrayList<>());
+            inputOthers.add(new ArrayList<>());
+        }
+        inputMappings.get(i).add(mapping);
+        inputOthers.get(i).add(other);
+    }
+
+    /**
+     * Returns the compiled mappings of a junction device type, compiling them
+     * on first use.
+     *
+     * @param deviceTypeCode the junction device type code
+     * @return the mapping index of the type
+     */
+    public static JunctionMappingIndex forType(String deviceTypeCode)
+    {
+        synchronized (typeIndexes)
+        {
+            CanradLibrary library = CanradLibrary.getInstance();
+            if (library != typeLibrary)
+            {
+                typeIndexes.clear();
+                typeLibrary = library;
+            }
+            JunctionMappingIndex index = typeIndexes.get(deviceTypeCode);
+            if (index == null)
+            {
+                List<JunctionDeviceTypeIntPortMap> portMappings = library.getJDIntPortMaps(deviceTypeCode);
+                index = new JunctionMappingIndex(deviceTypeCode, portMappings == null ? new ArrayList<>() : portMappings);
+                typeIndexes.put(deviceTypeCode, index);
+            }
+            return index;
+        }
+    }
+
+    public String getDeviceTypeCode()
+    {
+        return deviceTypeCode;
+    }
+
+    /**
+     * @param typePortId the type port id of the input port
+     * @return the input ordinal of the port, or {@link ConnectivityGraph#NONE}
+     *         if no mapping leaves the port
+     */
+    public int indexOf(String typePortId)
+    {
+        Integer index = typePortId == null ? null : inputIndex.get(typePortId);
+        return index == null ? ConnectivityGraph.NONE : index;
+    }
+
+    public String getInputPortTypeId(int input)
+    {
+        return inputPortTypeIds[input];
+    }
+
+    /**
+     * @param input the input ordinal
+     * @return the first mapping row of the input port. The rows of an input
+     *         are contiguous and end at the first row of the next input.
+     */
+    public int getFirstMapping(int input)
+    {
+        return inputRowStart[input];
+    }
+
+    public int getEndMapping(int input)
+    {
+        return inputRowStart[input + 1];
+    }
+
+    public JunctionDeviceTypeIntPortMap getMapping(int row)
+    {
+        return mappings[row];
+    }
+
+    public String getOtherPortTypeId(int row)
+    {
+        return otherPortTypeIds[row];
+    }
+
+    public boolean isPass(int row)
+    {
+        return passes[row];
+    }
+
+    /**
+     * @param row the mapping row
+     * @return true if the mapping has both a minimum and maximum frequency
+     */
+    public boolean hasFrequencies(int row)
+    {
+        return bounded[row];
+    }
+
+    public double getMinFrequency(int row)
+    {
+        return minFrequencies[row];
+    }
+
+    public double getMaxFrequency(int row)
+    {
+        return maxFrequencies[row];
+    }
+
+    /**
+     * Returns the frequencies that leave through each mapping row of an input
+     * port, computing them on first use. The returned array must not be
+     * modified.
+     *
+     * @param input    the input ordinal of the port
+     * @param incoming the frequencies entering the port
+     * @return the frequencies leaving through each row, indexed from the first
+     *         mapping row of the input
+     */
+    public FrequencyIntervalSet[] getTransfer(int input, FrequencyIntervalSet incoming)
+    {
+        Map<FrequencyIntervalSet, FrequencyIntervalSet[]> inputTransfers = transfers.get(input);
+        FrequencyIntervalSet[] transfer = inputTransfers.get(incoming);
+        if (transfer != null)
+            return transfer;
+
+        // Two threads may compute the same outcome, either result is correct
+        int first = inputRowStart[input];
+        transfer = new FrequencyIntervalSet[inputRowStart[input + 1] - first];
+        for (int i = 0; i < transfer.length; i++)
+        {
+            transfer[i] = CellConnectivityHelper.adjustAllowedFrequencies(this, first + i, incoming);
+        }
+        if (inputTransfers.size() < MAX_TRANSFERS)
+            inputTransfers.put(incoming, transfer);
+        return transfer;
+    }
+}
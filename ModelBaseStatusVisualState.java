@@ -13,6 +13,11 @@ import canrad.reference.components.CanradLibrary;
 import dialog.geometry.components.Component;
 import dialog.geometry.viewmodel.ModelVisualState;
 import dialog.utilities.KeyValueMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 
 /**
@@ -24,9 +29,39 @@ public class ModelBaseStatusVisualState
 
     public final static KeyValueMap<String, ModelVisualState> statusMap;
 
+    public final static int NO_STATUS = -1;
+
+    // The status codes of the library are given ordinals once, the visual
+    // state of each ordinal is held in an array with Standard for no visual state
+    private final static Map<String, Integer> statusOrdinals;
+    private final static ModelVisualState[] statusVisualStates;
+
+    // The model component a component of each class takes its status from, worked out once per class
+    private final static ClassValue<Function<Component, ModelBase>> statusSources = new ClassValue<Function<Component, ModelBase>>()
+    {
+        @Override
+        protected Function<Component, ModelBase> computeValue(Class<?> type)
+        {
+            if (ModelBase.class.isAssignableFrom(type))
+                return component -> (ModelBase) component;
+            else if (FeederEndLayout.class.isAssignableFrom(type))
+                return component -> ((FeederEndLayout) component).getFeederLayout().getFeeder();
+            else if (FeederSegment.class.isAssignableFrom(type))
+                return component -> ((FeederSegment) component).getFeeder();
+            else if (Port.class.isAssignableFrom(type))
+                return component -> ((Port) component).getParentDevice();
+            return null;
+        }
+    };
+
+    // The states worked out by the incremental status view since it was last activated
+    private final StatusFunction statusFunction = new StatusFunction();
+
     static
     {
         statusMap = new KeyValueMap<>();
+        statusOrdinals = new HashMap<>();
+        List<ModelVisualState> visualStates = new ArrayList<>();
         for (String statusCode : CanradLibrary.getInstance().getStatuses())
         {
             String origStatusCode = statusCode;
@@ -37,43 +72,108 @@ public class ModelBaseStatusVisualState
             String visualStateName = "Status_" + statusCode;
             ModelVisualState visualState = ModelVisualState.getModelVisualStateByName(visualStateName);
             statusMap.addKeyValuePair(origStatusCode, visualState);
+            statusOrdinals.put(origStatusCode, visualStates.size());
+            visualStates.add(visualState != null ? visualState : ModelVisualState.Standard);
         }
+        statusVisualStates = visualStates.toArray(new ModelVisualState[visualStates.size()]);
+    }
+
+    /**
+     * @param statusCode the status code
+     * @return the ordinal of the status code, or {@link #NO_STATUS} if it is
+     *         not a status of the library
+     */
+    public static int getStatusOrdinal(String statusCode)
+    {
+        Integer ordinal = statusCode == null ? null : statusOrdinals.get(statusCode);
+        return ordinal == null ? NO_STATUS : ordinal;
     }
 
+    /**
+     * @param statusOrdinal the ordinal of a status code
+     * @return the visual state of the status, Standard if it has none
+     */
+    public static ModelVisualState getStatusVisualState(int statusOrdinal)
+    {
+        return statusOrdinal == NO_STATUS ? ModelVisualState.Standard : statusVisualStates[statusOrdinal];
+    }
+
+    /**
+     * @param component the component
+     * @return the model component the status of the component is taken from,
+     *         or null if the component has no status
+     */
+    public static ModelBase getStatusSource(Component component)
+    {
+        Function<Component, ModelBase> source = statusSources.get(component.getClass());
+        return source == null ? null : source.apply(component);
+    }
+
+    /**
+     * The visual state of each model component is worked out once per
+     * function, and again only when its status code changes.
+     *
+     * @return a status view function
+     */
     public static Function<Component, ModelVisualState> getStatusVisualStateFunction()
     {
-        return (Component component)
-                -> 
-                {
-                    String statusCode;
-                    if (ModelBase.class.isAssignableFrom(component.getClass()))
-                    {
-                        statusCode = ((ModelBase) component).getStatusCode();
-
-                    }
-                    else if (component instanceof FeederEndLayout)
-                    {
-                        statusCode = ((FeederEndLayout) component).getFeederLayout().getFeeder().getStatusCode();
-
-                    }
-                    else if (component instanceof FeederSegment)
-                    {
-                        statusCode = ((FeederSegment) component).getFeeder().getStatusCode();
-
-                    }
-                    else if (component instanceof Port) {
-                        statusCode = ((Port) component).getParentDevice().getStatusCode();
-                    }
-                    else
-                    {
-                        return ModelVisualState.Standard;
-                    }
-                    ModelVisualState vs = statusMap.getValueForKey(statusCode);
-                    if (vs != null)
-                    {
-                        return vs;
-                    }
-                    return ModelVisualState.Standard;
-        };
+        return new StatusFunction();
+    }
+
+    /**
+     * The status view function of this instance, to be fetched each time the
+     * status view is activated.
+     *
+     * @return the visual state function of the status view
+     */
+    public Function<Component, ModelVisualState> getIncrementalStatusVisualStateFunction()
+    {
+        clear();
+        return statusFunction;
+    }
+
+    /**
+     * Forgets the visual states worked out so far. Called on each activation
+     * of the status view.
+     */
+    public void clear()
+    {
+        statusFunction.modelStates.clear();
+    }
+
+    private static final class StatusFunction implements Function<Component, ModelVisualState>
+    {
+        private final Map<ModelBase, ModelState> modelStates = new IdentityHashMap<>();
+
+        @Override
+        public ModelVisualState apply(Component component)
+        {
+            Function<Component, ModelBase> source = statusSources.get(component.getClass());
+            if (source == null)
+            {
+                return ModelVisualState.Standard;
+            }
+            ModelBase model = source.apply(component);
+            String statusCode = model.getStatusCode();
+            ModelState state = modelStates.get(model);
+            if (state == null)
+            {
+                state = new ModelState();
+                modelStates.put(model, state);
+            }
+            else if (state.statusCode == statusCode || (statusCode != null && statusCode.equals(state.statusCode)))
+            {
+                return state.vs;
+            }
+            state.statusCode = statusCode;
+            state.vs = getStatusVisualState(getStatusOrdinal(statusCode));
+            return state.vs;
+        }
+    }
+
+    private static final class ModelState
+    {
+        String statusCode;
+        ModelVisualState vs;
     }
 }
@@ -10,15 +10,9 @@
  */
 package canrad.misc;
 
-import canrad.layout.models.CanradModelVisualState;
 import canrad.reference.components.MobilesCell;
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Optional;
-import java.util.OptionalInt;
 import java.util.function.Function;
-import java.util.stream.IntStream;
 
 /**
  *
@@ -26,65 +20,44 @@ import java.util.stream.IntStream;
  */
 public class ModelBaseTechColour
 {
-    public static Function<List<MobilesCell>, String> getHighestTechFunction()
+    private static final Function<List<MobilesCell>, String> highestTechFunction = new Function<List<MobilesCell>, String>()
     {
-        return new Function<List<MobilesCell>, String>()
+        @Override
+        public String apply(List<MobilesCell> mobileCellList)
         {
-            @Override
-            public String apply(List<MobilesCell> mobileCellList)
+            //Keep the first cell with the highest ranked technology, unknown technologies are ignored
+            String highestTech = null;
+            int highestRank = TechnologyRank.NONE;
+            for (int i = 0; i < mobileCellList.size(); i++)
             {
-                List<TechOrder> techOrderList = new ArrayList();
-                List<CanradModelVisualState> techColourListOrder = CanradModelVisualState.technologyVisualStates;
-
-                mobileCellList.stream().forEach(cell -> 
-                        {
-                            String techCode = cell.getTechnology();
-                            if (techCode != null)
-                            {
-                                //Find technology order in list of technologies by using the index of list.
-                                OptionalInt index = IntStream.range(0, techColourListOrder.size()).filter(i -> techColourListOrder.get(i).name.equalsIgnoreCase(techCode)).findFirst();
-                                //Only process known technologies
-                                if (index.isPresent())
-                                {
-                                    //Create TechOrder object to store the technology and its order.  Store in a list.
-                                    techOrderList.add(new TechOrder(techCode, index.getAsInt()));
-                                }
-
-                            }
-                        });
-                //Find highest technology from list of TechOrder objects
-                if (techOrderList.size() > 1)
-                {
-                    //Do comparison to get highest tech
-                    Comparator<TechOrder> byTechOrder = (t1, t2) -> Integer.compare(
-                            t1.getTechOrder(), t2.getTechOrder());
-
-                    //Sort the list and retrieve first element in list as that is the higher priority tech
-                    Optional<TechOrder> obj = techOrderList.stream().sorted(byTechOrder).findFirst();
-                    return(obj.get().getTechCode());
-
-                }
-                else if (techOrderList.size() == 1)
+                String techCode = mobileCellList.get(i).getTechnology();
+                int rank = TechnologyRank.rankOf(techCode);
+                if (rank != TechnologyRank.NONE && (highestRank == TechnologyRank.NONE || rank < highestRank))
                 {
-                    return(techOrderList.get(0).getTechCode());
-                }
-                else {
-                    return null;
+                    highestRank = rank;
+                    highestTech = techCode;
                 }
             }
-        };
+            return highestTech;
+        }
+    };
+
+    public static Function<List<MobilesCell>, String> getHighestTechFunction()
+    {
+        return highestTechFunction;
     }
- 
+
+    /**
+     * A technology and its order, now taken from {@link TechnologyRank}.
+     */
     public static class TechOrder
     {
 
         private final String techCode;
-        private final Integer techOrder;
 
-        private TechOrder(String technologyCode, Integer order)
+        public TechOrder(String technologyCode)
         {
             techCode = technologyCode;
-            techOrder = order;
         }
 
         public String getTechCode()
@@ -94,7 +67,8 @@ public class ModelBaseTechColour
 
         public Integer getTechOrder()
         {
-            return techOrder;
+            int rank = TechnologyRank.rankOf(techCode);
+            return rank == TechnologyRank.NONE ? null : rank;
         }
     }
 }
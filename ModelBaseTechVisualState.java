@@ -10,21 +10,20 @@
  */
 package canrad.misc;
 
+import canrad.celltrace.ConnectivityGraph;
+import canrad.celltrace.SiteTraceResult;
 import canrad.celltrace.TransceiverConnectivityHandler;
 import canrad.geometry.components.Feeder;
-import canrad.geometry.components.Port;
+import canrad.geometry.components.SiteExport;
 import canrad.geometry.components.SiteExportViewModel;
-import canrad.geometry.components.Transceiver;
-import canrad.layout.models.CanradModelVisualState;
+import canrad.layout.components.FeederEndLayout;
+import canrad.layout.components.FeederSegment;
 import canrad.reference.components.CanradLibrary;
-import canrad.reference.components.MobilesCell;
 import dialog.geometry.components.Component;
 import dialog.geometry.viewmodel.ModelVisualState;
-import dialog.geometry.visuals.InteractiveVisualLocation;
-import dialog.geometry.visuals.ViewportStupid;
 import dialog.utilities.KeyValueMap;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.function.Function;
 
 /**
@@ -35,6 +34,8 @@ public class ModelBaseTechVisualState
 {
     public final static KeyValueMap<String, ModelVisualState> techMap;
     private final TransceiverConnectivityHandler connectivityHandler;
+    private final SiteExport siteExport;
+    private SiteTraceResult siteTrace;
    
     static
     {
@@ -59,12 +60,30 @@ public class ModelBaseTechVisualState
     
     public static ModelVisualState getVisualState(String techCode)
     {
+        // A ranked technology takes the visual state shown in the legend, looked up without regard to case
+        int rank = TechnologyRank.rankOf(techCode);
+        if (rank != TechnologyRank.NONE)
+            return TechnologyRank.getVisualState(rank);
         return techMap.getValueForKey(techCode);        
     }
 
-    public ModelBaseTechVisualState(SiteExportViewModel siteViewModel)
+    /**
+     * @param rank the technology rank
+     * @return the visual state of the technology, or null if it has none
+     */
+    public static ModelVisualState getVisualState(int rank)
     {
-        connectivityHandler = new TransceiverConnectivityHandler(siteViewModel);
+        return TechnologyRank.getVisualState(rank);
+    }
+
+    /**
+     * @param siteViewModel
+     * @param siteExport    the site shown by the view model
+     */
+    public ModelBaseTechVisualState(SiteExportViewModel siteViewModel, SiteExport siteExport)
+    {
+        this.siteExport = siteExport;
+        connectivityHandler = new TransceiverConnectivityHandler(siteViewModel, siteExport);
     }
     
     public TransceiverConnectivityHandler getConnectivityHandler()
@@ -72,49 +91,72 @@ public class ModelBaseTechVisualState
         return connectivityHandler;
     }
 
+    /**
+     * @return the result of the site trace made for the last Technology view
+     *         function, or null if none has been made
+     */
+    public SiteTraceResult getSiteTrace()
+    {
+        return siteTrace;
+    }
+
+    /**
+     * Traces the site and works out the visual state of every feeder in the
+     * Technology view.
+     *
+     * @return the visual state of each feeder that is coloured
+     */
+    private Map<Component, ModelVisualState> buildTechVisualStates()
+    {
+        siteTrace = connectivityHandler.traceSiteConnectivity(true, "Technology");
+
+        Map<Component, ModelVisualState> states = new IdentityHashMap<>();
+        ModelVisualState vsRET = getVisualState("RET");
+        ConnectivityGraph graph = ConnectivityGraph.forSite(siteExport);
+        for (int f = 0; f < graph.getFeederCount() && vsRET != null; f++)
+        {
+            if (graph.hasFeederFlag(f, ConnectivityGraph.FEEDER_RET))
+                states.put(graph.getFeeder(f), vsRET);
+        }
+        for (Feeder feeder : siteTrace.getFeeders())
+        {
+            if (states.containsKey(feeder))
+                continue;
+            ModelVisualState vs = siteTrace.getTechVisualState(feeder);
+            if (vs != null)
+                states.put(feeder, vs);
+        }
+        return states;
+    }
+
+    /**
+     * The site is traced when the function is first applied and again after an
+     * edit is reported to the connectivity handler.
+     *
+     * @return the visual state function of the Technology view
+     */
     public Function<Component, ModelVisualState> getTechVisualStateFunction()
     {
         return new Function<Component, ModelVisualState>()
         {
+            private Map<Component, ModelVisualState> states;
+            private int statesEdit;
+
             @Override
             public ModelVisualState apply(Component component)
             {
-                if (component instanceof Port)
-                {
-                    if (((Port) component).getParentDevice() instanceof Transceiver)
-                    {
-                        Transceiver parentTransceiver = (Transceiver) ((Port) component).getParentDevice();
-                        List<MobilesCell> mobilesCells = new ArrayList<MobilesCell>(connectivityHandler.retrieveTransceiverMobileCells(parentTransceiver));
-
-                        if (mobilesCells.size() > 0)
-                        {   
-                            mobilesCells.forEach(cell
-                                    -> 
-                                    {
-                                        if (cell != null)
-                                        {
-                                            connectivityHandler.traceMobilesCellConnectivity(parentTransceiver, cell, true, "Technology");
-                                        }
-                                        connectivityHandler.getHighlightList().clear();
-                            });
-                        }
-                    }
-                    
-                }
-                else if (component instanceof Feeder)
+                if (states == null || statesEdit != connectivityHandler.getEditCount())
                 {
-                    Feeder feeder = (Feeder)component;
-                    if (feeder.getAttributes().contains("RET"))
-                    {
-                        InteractiveVisualLocation vl = (InteractiveVisualLocation) feeder.getVisualLocation();
-                        ViewportStupid viewport = vl.getContainerVisualLocations().getViewport(SiteExportViewModel.CONNECTIVITY_WORKSPACE_NAME);
-                        ModelVisualState vsRET = ModelBaseTechVisualState.getVisualState("RET");
-                        vl.addVisualStateMap(CanradModelVisualState.Standard, vsRET, viewport, "Technology");
-                        vl.setVisualState(CanradModelVisualState.Standard, false, viewport);
-                    }
+                    statesEdit = connectivityHandler.getEditCount();
+                    states = buildTechVisualStates();
                 }
-                
-                return ModelVisualState.Standard;
+                Component key = component;
+                if (component instanceof FeederEndLayout)
+                    key = ((FeederEndLayout) component).getFeederLayout().getFeeder();
+                else if (component instanceof FeederSegment)
+                    key = ((FeederSegment) component).getFeeder();
+                ModelVisualState vs = states.get(key);
+                return vs != null ? vs : ModelVisualState.Standard;
             }
         };
     }
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2015 Telstra Corporation.
+ *
+ * This program is the property of Telstra Corporation.
+ * You may not use this code without the express permission of
+ * the designated business owner of the software in Telstra.
+ * Parts of this program are copyright Dialog Information Technology
+ * and licensed for the use of Telstra Corporation as part of this
+ * software.
+ */
+package canrad.celltrace;
+
+import canrad.geometry.components.DeviceBase;
+import canrad.geometry.components.Port;
+import canrad.geometry.components.Segment;
+import canrad.geometry.components.Transceiver;
+import canrad.layout.models.FrequencyRange;
+import canrad.reference.components.AntennaTypePortSegment;
+import canrad.reference.components.CanradLibrary;
+import canrad.reference.components.Frequency;
+import canrad.reference.components.MobilesCell;
+import canrad.reference.components.MobilesFrequencyBand;
+import canrad.reference.components.TransceiverFuncType;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The SiteReferenceData class holds the reference data of the segments of a
+ * {@link ConnectivityGraph}, resolved against the {@link CanradLibrary} once.
+ * It must be discarded with
+ * {@link ConnectivityGraph#invalidateReferenceData(canrad.geometry.components.SiteExport)}
+ * when a segment of the site is edited.
+ *
+ * @author
+ */
+public final class SiteReferenceData
+{
+    public static final byte SEGMENT_OTHER = 0;
+    public static final byte SEGMENT_ANTENNA = 1;
+    public static final byte SEGMENT_TRANSCEIVER = 2;
+
+    private final Map<Port, Integer> portIndex;
+    private final int[] portSegmentStart;
+
+    private final Segment[] segments;
+    private final byte[] segmentKinds;
+    private final Map<Segment, Integer> segmentIndex;
+
+    private final MobilesCell[] cells;
+    private final int[] segmentCells;
+    private final TransceiverFuncType[] funcTypes;
+    private final int[] segmentFuncTypes;
+    private final MobilesFrequencyBand[] bands;
+    private final int[] segmentBands;
+    private final Frequency[] frequencies;
+    private final int[] segmentFrequencies;
+
+    // The frequency range of each segment, NaN where the segment has none
+    private final double[] minFrequencies;
+    private final double[] maxFrequencies;
+    private final FrequencyIntervalSet[] frequencySets;
+    // The segments of each port in the order of their lower bound, NaN last
+    private final int[] segmentsByMin;
+
+    SiteReferenceData(ConnectivityGraph graph)
+    {
+        final CanradLibrary library = CanradLibrary.getInstance();
+
+        portIndex = new IdentityHashMap<>();
+        segmentIndex = new IdentityHashMap<>();
+        List<Integer> portStarts = new ArrayList<>();
+        List<Segment> segmentList = new ArrayList<>();
+        List<DeviceBase> segmentDevices = new ArrayList<>();
+        for (int device = 0; device < graph.getDeviceCount(); device++)
+        {
+            DeviceBase deviceBase = graph.getDevice(device);
+            List<Port> devicePorts = deviceBase.getPorts();
+            if (devicePorts == null)
+                continue;
+            for (Port port : devicePorts)
+            {
+                if (portIndex.containsKey(port))
+                    continue;
+                portIndex.put(port, portStarts.size());
+                portStarts.add(segmentList.size());
+                List<Segment> portSegments = port.getSegmentsList();
+                if (portSegments == null)
+                    continue;
+                for (Segment segment : portSegments)
+                {
+                    segmentIndex.put(segment, segmentList.size());
+                    segmentList.add(segment);
+                    segmentDevices.add(deviceBase);
+                }
+            }
+        }
+        portSegmentStart = new int[portStarts.size() + 1];
+        for (int p = 0; p < portStarts.size(); p++)
+        {
+            portSegmentStart[p] = portStarts.get(p);
+        }
+        portSegmentStart[portStarts.size()] = segmentList.size();
+
+        int segmentCount = segmentList.size();
+        segments = segmentList.toArray(new Segment[segmentCount]);
+        segmentKinds = new byte[segmentCount];
+        segmentCells = new int[segmentCount];
+        segmentFuncTypes = new int[segmentCount];
+        segmentBands = new int[segmentCount];
+        segmentFrequencies = new int[segmentCount];
+
+        Map<Integer, Integer> cellOrdinals = new HashMap<>();
+        List<MobilesCell> cellList = new ArrayList<>();
+        Map<TransceiverFuncType, Integer> funcTypeOrdinals = new IdentityHashMap<>();
+        List<TransceiverFuncType> funcTypeList = new ArrayList<>();
+        Map<Integer, Integer> bandOrdinals = new HashMap<>();
+        List<MobilesFrequencyBand> bandList = new ArrayList<>();
+        Map<Integer, Integer> frequencyOrdinals = new HashMap<>();
+        List<Frequency> frequencyList = new ArrayList<>();
+        for (int s = 0; s < segmentCount; s++)
+        {
+            Segment segment = segments[s];
+            segmentCells[s] = ConnectivityGraph.NONE;
+            segmentFuncTypes[s] = ConnectivityGraph.NONE;
+            segmentBands[s] = ConnectivityGraph.NONE;
+            segmentFrequencies[s] = ConnectivityGraph.NONE;
+
+            Integer cellId = segment.getMobilesCellId();
+            if (cellId != null)
+            {
+                Integer cell = cellOrdinals.get(cellId);
+                if (cell == null)
+                {
+                    MobilesCell mobilesCell = library.getMobilesCell(cellId);
+                    cell = mobilesCell == null ? ConnectivityGraph.NONE : cellList.size();
+                    if (mobilesCell != null)
+                        cellList.add(mobilesCell);
+                    cellOrdinals.put(cellId, cell);
+                }
+                segmentCells[s] = cell;
+            }
+
+            TransceiverFuncType funcType = segment.getSegmentFuncType();
+            if (funcType != null)
+            {
+                Integer f = funcTypeOrdinals.get(funcType);
+                if (f == null)
+                {
+                    f = funcTypeList.size();
+                    funcTypeOrdinals.put(funcType, f);
+                    funcTypeList.add(funcType);
+                }
+                segmentFuncTypes[s] = f;
+            }
+
+            if (segment.getAntennaTypePortSegment() != null)
+            {
+                segmentKinds[s] = SEGMENT_ANTENNA;
+            }
+            else if (segment.getTransceiverTypePortSegment() != null)
+            {
+                // The frequency range is the mobiles band if provided, or else the transceiver range
+                segmentKinds[s] = SEGMENT_TRANSCEIVER;
+                Integer bandId = segment.getMobilesFreqBandId();
+                if (bandId != null)
+                {
+                    Integer band = bandOrdinals.get(bandId);
+                    if (band == null)
+                    {
+                        band = bandList.size();
+                        bandOrdinals.put(bandId, band);
+                        bandList.add(library.getMobilesFrequencyBandById(bandId));
+                    }
+                    segmentBands[s] = band;
+                }
+                else if (segmentDevices.get(s) instanceof Transceiver)
+                {
+                    Integer frequencyTypeId = ((Transceiver) segmentDevices.get(s)).getFrequencyTypeId();
+                    Integer frequency = frequencyOrdinals.get(frequencyTypeId);
+                    if (frequency == null)
+                    {
+                        frequency = frequencyList.size();
+                        frequencyOrdinals.put(frequencyTypeId, frequency);
+                        frequencyList.add(library.getFrequency(frequencyTypeId));
+                    }
+                    segmentFrequencies[s] = frequency;
+                }
+            }
+        }
+        cells = cellList.toArray(new MobilesCell[cellList.size()]);
+        funcTypes = funcTypeList.toArray(new TransceiverFuncType[funcTypeList.size()]);
+        bands = bandList.toArray(new MobilesFrequencyBand[bandList.size()]);
+        frequencies = frequencyList.toArray(new Frequency[frequencyList.size()]);
+
+        minFrequencies = new double[segmentCount];
+        maxFrequencies = new double[segmentCount];
+        frequencySets = new FrequencyIntervalSet[segmentCount];
+        for (int s = 0; s < segmentCount; s++)
+        {
+            FrequencyRange range = resolveFrequencyRange(s);
+            Double min = range == null ? null : range.getMinFrequency();
+            Double max = range == null ? null : range.getMaxFrequency();
+            minFrequencies[s] = min == null ? Double.NaN : min;
+            maxFrequencies[s] = max == null ? Double.NaN : max;
+            frequencySets[s] = FrequencyIntervalSet.of(min, max);
+        }
+
+        // Sort the segments of each port with an insertion sort, a port has few segments
+        segmentsByMin = new int[segmentCount];
+        for (int port = 0; port < portSegmentStart.length - 1; port++)
+        {
+            int first = portSegmentStart[port];
+            for (int i = first; i < portSegmentStart[port + 1]; i++)
+            {
+                int j = i - 1;
+                while (j >= first && Double.compare(minFrequencies[segmentsByMin[j]], minFrequencies[i]) > 0)
+                {
+                    segmentsByMin[j + 1] = segmentsByMin[j];
+                    j--;
+                }
+                segmentsByMin[j + 1] = i;
+            }
+        }
+    }
+
+    public int getSegmentCount()
+    {
+        return segments.length;
+    }
+
+    /**
+     * @param port a port of a device of the graph
+     * @return the ordinal of the port in this data, or
+     *         {@link ConnectivityGraph#NONE} if it is not known
+     */
+    public int indexOf(Port port)
+    {
+        Integer index = portIndex.get(port);
+        return index == null ? ConnectivityGraph.NONE : index;
+    }
+
+    /**
+     * @param port the ordinal of the port in this data
+     * @return the ordinal of the first segment of the port. The segments of a
+     *         port are contiguous and end at the first segment of the next
+     *         port.
+     */
+    public int getFirstSegment(int port)
+    {
+        return portSegmentStart[port];
+    }
+
+    public int getEndSegment(int port)
+    {
+        return portSegmentStart[port + 1];
+    }
+
+    /**
+     * @return the ordinal of the segment, or {@link ConnectivityGraph#NONE}
+     *         if it is not known
+     */
+    public int indexOf(Segment segment)
+    {
+        Integer index = segmentIndex.get(segment);
+        return index == null ? ConnectivityGraph.NONE : index;
+    }
+
+    public Segment getSegment(int segment)
+    {
+        return segments[segment];
+    }
+
+    public byte getSegmentKind(int segment)
+    {
+        return segmentKinds[segment];
+    }
+
+    /**
+     * @return the mobiles cell of the segment, or null if it has none
+     */
+    public MobilesCell getCell(int segment)
+    {
+        int cell = segmentCells[segment];
+        return cell == ConnectivityGraph.NONE ? null : cells[cell];
+    }
+
+    public TransceiverFuncType getFuncType(int segment)
+    {
+        int funcType = segmentFuncTypes[segment];
+        return funcType == ConnectivityGraph.NONE ? null : funcTypes[funcType];
+    }
+
+    /**
+     * @return the number of distinct cells used by the segments
+     */
+    public int getCellCount()
+    {
+        return cells.length;
+    }
+
+    /**
+     * @param segment the segment ordinal
+     * @return the lower bound of the frequency range of the segment, or NaN
+     *         if it has none
+     */
+    public double getMinFrequency(int segment)
+    {
+        return minFrequencies[segment];
+    }
+
+    public double getMaxFrequency(int segment)
+    {
+        return maxFrequencies[segment];
+    }
+
+    /**
+     * Finds the segments of a port whose frequency range overlaps the given
+     * frequencies.
+     *
+     * @param port        the ordinal of the port in this data
+     * @param frequencies the frequencies reaching the port
+     * @param fits        set to the fitting segments, counted from the first
+     *                    segment of the port
+     */
+    public void findFittingSegments(int port, FrequencyIntervalSet frequencies, BitSet fits)
+    {
+        fits.clear();
+        int first = portSegmentStart[port];
+        int interval = 0;
+        int intervalCount = frequencies.size();
+        for (int i = first; i < portSegmentStart[port + 1] && interval < intervalCount; i++)
+        {
+            int segment = segmentsByMin[i];
+            double min = minFrequencies[segment];
+            if (Double.isNaN(min))
+                break;
+            while (interval < intervalCount && frequencies.getMaxFrequency(interval) < min)
+            {
+                interval++;
+            }
+            if (interval < intervalCount && frequencies.getMinFrequency(interval) <= maxFrequencies[segment])
+                fits.set(segment - first);
+        }
+    }
+
+    /**
+     * @param segment the segment ordinal
+     * @return the frequency range of the segment as a set, empty if it has
+     *         none. The same set is returned for every call.
+     */
+    public FrequencyIntervalSet getFrequencies(int segment)
+    {
+        return frequencySets[segment];
+    }
+
+    /**
+     * @param segment the segment ordinal
+     * @return the frequency range of the segment, or null if the segment is
+     *         neither an antenna nor a transceiver segment or its range could
+     *         not be resolved
+     */
+    public FrequencyRange getFrequencyRange(int segment)
+    {
+        if (segmentKinds[segment] == SEGMENT_OTHER || Double.isNaN(minFrequencies[segment]))
+            return null;
+        return new FrequencyRange(minFrequencies[segment], maxFrequencies[segment]);
+    }
+
+    /**
+     * Works out the frequency range of a segment.
+     *
+     * @return the range, or null if it could not be resolved
+     */
+    private FrequencyRange resolveFrequencyRange(int segment)
+    {
+        switch (segmentKinds[segment])
+        {
+            case SEGMENT_ANTENNA:
+                AntennaTypePortSegment typePortSegment = segments[segment].getAntennaTypePortSegment();
+                return new FrequencyRange(typePortSegment.getMinFreq(), typePortSegment.getMaxFreq());
+            case SEGMENT_TRANSCEIVER:
+                if (segmentBands[segment] != ConnectivityGraph.NONE)
+                {
+                    MobilesFrequencyBand band = bands[segmentBands[segment]];
+                    return band == null ? null : new FrequencyRange(band.getMinFrequency(), band.getMaxFrequency());
+                }
+                if (segmentFrequencies[segment] == ConnectivityGraph.NONE)
+                    return null;
+                Frequency frequency = frequencies[segmentFrequencies[segment]];
+                return frequency == null ? null : new FrequencyRange(frequency.getFreqMHz(), frequency.getPartnerMHz());
+            default:
+                return null;
+        }
+    }
+}
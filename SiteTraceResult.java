@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Telstra Corporation.
+ *
+ * This program is the property of Telstra Corporation.
+ * You may not use this code without the express permission of
+ * the designated business owner of the software in Telstra.
+ * Parts of this program are copyright Dialog Information Technology
+ * and licensed for the use of Telstra Corporation as part of this
+ * software.
+ */
+package canrad.celltrace;
+
+import canrad.celltrace.TransceiverConnectivityHandler.FeederTechnology;
+import canrad.geometry.components.DeviceBase;
+import canrad.geometry.components.Feeder;
+import canrad.layout.models.CellConnectionDetails;
+import canrad.misc.ModelBaseTechVisualState;
+import canrad.reference.components.MobilesCell;
+import dialog.geometry.viewmodel.ModelVisualState;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The SiteTraceResult class holds the outcome of tracing every mobiles cell
+ * of every transceiver of a site in a single pass. The results are available
+ * per cell, per antenna and per feeder.
+ *
+ * @author
+ */
+public class SiteTraceResult
+{
+    private final Map<MobilesCell, List<CellConnectionDetails>> cellConnections = new HashMap<>();
+    private final Map<DeviceBase, List<CellConnectionDetails>> antennaConnections = new HashMap<>();
+    private final Map<Feeder, FeederTechnology> feederTechnologies;
+
+    SiteTraceResult(Map<Feeder, FeederTechnology> feederTechnologies)
+    {
+        this.feederTechnologies = feederTechnologies;
+    }
+
+    void addConnections(MobilesCell cell, List<CellConnectionDetails> connections)
+    {
+        List<CellConnectionDetails> cellList = cellConnections.get(cell);
+        if (cellList == null)
+            cellConnections.put(cell, cellList = new ArrayList<>());
+        cellList.addAll(connections);
+
+        for (CellConnectionDetails details : connections)
+        {
+            DeviceBase antenna = details.getConnectedPort().getParentDevice();
+            List<CellConnectionDetails> antennaList = antennaConnections.get(antenna);
+            if (antennaList == null)
+                antennaConnections.put(antenna, antennaList = new ArrayList<>());
+            antennaList.add(details);
+        }
+    }
+
+    /**
+     * @param cell the mobiles cell
+     * @return the connections found for the cell on all transceivers of the
+     *         site
+     */
+    public List<CellConnectionDetails> getCellConnections(MobilesCell cell)
+    {
+        List<CellConnectionDetails> list = cellConnections.get(cell);
+        return list == null ? Collections.<CellConnectionDetails>emptyList() : Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @param antenna the antenna
+     * @return the connections of all cells that reach a segment of the antenna
+     */
+    public List<CellConnectionDetails> getAntennaConnections(DeviceBase antenna)
+    {
+        List<CellConnectionDetails> list = antennaConnections.get(antenna);
+        return list == null ? Collections.<CellConnectionDetails>emptyList() : Collections.unmodifiableList(list);
+    }
+
+    public Set<MobilesCell> getCells()
+    {
+        return Collections.unmodifiableSet(cellConnections.keySet());
+    }
+
+    public Set<DeviceBase> getAntennas()
+    {
+        return Collections.unmodifiableSet(antennaConnections.keySet());
+    }
+
+    public Set<Feeder> getFeeders()
+    {
+        return Collections.unmodifiableSet(feederTechnologies.keySet());
+    }
+
+    /**
+     * @param feeder the feeder
+     * @return the distinct cells that pass through the feeder
+     */
+    public List<MobilesCell> getMatchedCells(Feeder feeder)
+    {
+        FeederTechnology ft = feederTechnologies.get(feeder);
+        return ft == null ? Collections.<MobilesCell>emptyList() : ft.getCellsOnFeeder(true, false);
+    }
+
+    /**
+     * @param feeder the feeder
+     * @return the visual state of the highest technology of the cells that
+     *         pass through the feeder, or of the cells that reach it if none
+     *         pass, or null if the technology has no visual state
+     */
+    public ModelVisualState getTechVisualState(Feeder feeder)
+    {
+        FeederTechnology ft = feederTechnologies.get(feeder);
+        return ft == null ? null : ModelBaseTechVisualState.getVisualState(ft.getHighestTechRank(ft.hasMatched()));
+    }
+
+    /**
+     * @param feeder the feeder
+     * @return the distinct cells that reach the feeder but do not pass through
+     */
+    public List<MobilesCell> getMismatchedCells(Feeder feeder)
+    {
+        FeederTechnology ft = feederTechnologies.get(feeder);
+        return ft == null ? Collections.<MobilesCell>emptyList() : ft.getCellsOnFeeder(false, true);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Telstra Corporation.
+ *
+ * This program is the property of Telstra Corporation.
+ * You may not use this code without the express permission of
+ * the designated business owner of the software in Telstra.
+ * Parts of this program are copyright Dialog Information Technology
+ * and licensed for the use of Telstra Corporation as part of this
+ * software.
+ */
+package canrad.misc;
+
+import canrad.layout.models.CanradModelVisualState;
+import canrad.reference.components.MobilesCell;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javafx.scene.paint.Color;
+
+/**
+ * The TechnologyRank class ranks the mobiles technologies in the order of the
+ * technology visual states, rank 0 being the highest priority technology.
+ *
+ * @author SeetoB
+ */
+public final class TechnologyRank
+{
+    public static final int NONE = -1;
+
+    private static volatile Table table;
+
+    private TechnologyRank()
+    {
+    }
+
+    /**
+     * @return the table of the current list of technology visual states
+     */
+    private static Table table()
+    {
+        Table current = table;
+        List<CanradModelVisualState> source = CanradModelVisualState.technologyVisualStates;
+        if (current == null || current.source != source || current.visualStates.size() != source.size())
+        {
+            current = new Table(source);
+            table = current;
+        }
+        return current;
+    }
+
+    /**
+     * Builds the table again, for when the technology visual states are
+     * reloaded in place.
+     */
+    public static void reload()
+    {
+        table = new Table(CanradModelVisualState.technologyVisualStates);
+    }
+
+    /**
+     * @param techCode the technology code, in any case
+     * @return the rank of the technology, or {@link #NONE} if the code is
+     *         null or not a known technology
+     */
+    public static int rankOf(String techCode)
+    {
+        if (techCode == null)
+            return NONE;
+        Table current = table();
+        Integer rank = current.codeRanks.get(techCode);
+        if (rank == null)
+        {
+            rank = current.ranks.get(techCode.toUpperCase(Locale.ROOT));
+            if (rank == null)
+                rank = NONE;
+            current.codeRanks.put(techCode, rank);
+        }
+        return rank;
+    }
+
+    public static int rankOf(MobilesCell cell)
+    {
+        return cell == null ? NONE : rankOf(cell.getTechnology());
+    }
+
+    /**
+     * @return the number of ranked technologies
+     */
+    public static int size()
+    {
+        return table().visualStates.size();
+    }
+
+    public static String getName(int rank)
+    {
+        return table().visualStates.get(rank).name;
+    }
+
+    /**
+     * @param rank the technology rank
+     * @return the visual state of the technology, or null for {@link #NONE}
+     */
+    public static CanradModelVisualState getVisualState(int rank)
+    {
+        List<CanradModelVisualState> visualStates = table().visualStates;
+        return rank == NONE || rank >= visualStates.size() ? null : visualStates.get(rank);
+    }
+
+    /**
+     * @return the technology visual states in rank order
+     */
+    public static List<CanradModelVisualState> getVisualStates()
+    {
+        return table().visualStates;
+    }
+
+    /**
+     * @return the colours of the technology visual states, in rank order
+     */
+    public static List<Color> getColours()
+    {
+        return table().colours;
+    }
+
+    private static final class Table
+    {
+        private final List<CanradModelVisualState> source;
+        private final List<CanradModelVisualState> visualStates;
+        private final List<Color> colours;
+        // rank of each upper case technology name
+        private final Map<String, Integer> ranks = new HashMap<>();
+        // rank of each technology code spelling seen, so a code is only normalised once
+        private final Map<String, Integer> codeRanks = new ConcurrentHashMap<>();
+
+        private Table(List<CanradModelVisualState> source)
+        {
+            this.source = source;
+            visualStates = Collections.unmodifiableList(new ArrayList<>(source));
+            List<Color> technologyColours = CanradModelVisualState.getTechnologyColours();
+            colours = Collections.unmodifiableList(technologyColours == null ? new ArrayList<>() : new ArrayList<>(technologyColours));
+            for (int rank = 0; rank < visualStates.size(); rank++)
+            {
+                ranks.putIfAbsent(visualStates.get(rank).name.toUpperCase(Locale.ROOT), rank);
+            }
+        }
+    }
+}
@@ -0,0 +1,679 @@
+/*
+ * Copyright 2015 Telstra Corporation.
+ *
+ * This program is the property of Telstra Corporation.
+ * You may not use this code without the express permission of
+ * the designated business owner of the software in Telstra.
+ * Parts of this program are copyright Dialog Information Technology
+ * and licensed for the use of Telstra Corporation as part of this
+ * software.
+ */
+package canrad.celltrace;
+
+import canrad.geometry.components.DeviceBase;
+import canrad.geometry.components.Feeder;
+import canrad.geometry.components.Port;
+import canrad.geometry.components.Segment;
+import canrad.layout.models.CellConnectionDetails;
+import canrad.layout.models.FrequencyRange;
+import canrad.layout.models.PortConnectionDetails;
+import canrad.reference.components.JunctionDeviceTypeIntPortMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The TraceContext class holds the state of the trace of a single cell on a
+ * single transceiver. The state of each walk is kept in its {@link Overlay},
+ * so the site model is never modified. A context is used by one thread at a
+ * time.
+ *
+ * @author
+ */
+public class TraceContext
+{
+    private final ConnectivityGraph graph;
+    private final TraceResultCache.Entry entry;
+    private TraceResultCache.Walk walk;
+
+    private final Set<Feeder> matchedFeederSet = new HashSet<>();
+
+    // Reused by every walk of the context so that a walk allocates next to nothing
+    private final BitSet visitedPorts = new BitSet();
+    private boolean visitedUnconnected;
+    private final BitSet pendingPorts = new BitSet();
+    private BitSet region;
+    private final Set<PortConnectionDetails> pendingUnindexed = Collections.newSetFromMap(new IdentityHashMap<>());
+    private PortConnectionDetails[] stack = new PortConnectionDetails[32];
+    private int stackSize;
+    private final List<PortConnectionDetails> endConnections = new ArrayList<>();
+
+    private List<Feeder> feederList = new ArrayList<>();
+    private List<List<PortConnectionDetails>> mappedPortsList = new ArrayList<>();
+    // The row of the tree view lists added for each connection that passed a junction device
+    private final Map<PortConnectionDetails, Integer> treeRows = new IdentityHashMap<>();
+
+    private Overlay overlay = new Overlay();
+    // True once the overlay and lists of the current walk have been handed to a walk or a prefix
+    private boolean retained;
+
+    // Reused by every junction device hop, the mapped ports of a hop are only copied out for a recorded walk
+    private final List<Port> hopPorts = new ArrayList<>();
+    private final List<PortConnectionDetails> hopConnections = new ArrayList<>();
+    private final List<FrequencyIntervalSet> hopFrequencies = new ArrayList<>();
+    private final List<PortConnectionDetails> hopMappedPorts = new ArrayList<>();
+
+    /**
+     * @param graph the compiled connectivity graph to be traversed
+     * @param entry the trace the walks of the context are recorded in, may be
+     *              null if the walks are not recorded
+     */
+    public TraceContext(ConnectivityGraph graph, TraceResultCache.Entry entry)
+    {
+        this.graph = graph;
+        this.entry = entry;
+    }
+
+    public ConnectivityGraph getGraph()
+    {
+        return graph;
+    }
+
+    public TraceResultCache.Entry getEntry()
+    {
+        return entry;
+    }
+
+    /**
+     * Starts a walk from a segment. The feeders matched by earlier walks of
+     * the cell are kept.
+     *
+     * @param walk the walk to be recorded, or null
+     */
+    void startWalk(TraceResultCache.Walk walk)
+    {
+        this.walk = walk;
+        visitedPorts.clear();
+        visitedUnconnected = false;
+        pendingPorts.clear();
+        pendingUnindexed.clear();
+        Arrays.fill(stack, 0, stackSize, null);
+        stackSize = 0;
+        endConnections.clear();
+        treeRows.clear();
+        if (retained)
+        {
+            feederList = new ArrayList<>();
+            mappedPortsList = new ArrayList<>();
+            overlay = new Overlay();
+        }
+        else
+        {
+            feederList.clear();
+            mappedPortsList.clear();
+            overlay.clear();
+        }
+        retained = walk != null;
+        if (walk != null)
+            walk.setOverlay(overlay);
+    }
+
+    /**
+     * Starts a walk that repeats the traversal of an earlier walk from the
+     * same port with the same frequencies.
+     *
+     * @param walk   the walk to be recorded, or null
+     * @param prefix the traversal to be repeated
+     */
+    void startWalk(TraceResultCache.Walk walk, Prefix prefix)
+    {
+        startWalk(walk);
+        retained = true;
+        overlay = prefix.overlay;
+        if (walk != null)
+        {
+            if (walk.getSegment() != prefix.walk.getSegment())
+                overlay = overlay.withSegment(walk.getSegment());
+            walk.setOverlay(overlay);
+            walk.replay(prefix.walk);
+        }
+        feederList.addAll(prefix.feederList);
+        mappedPortsList = prefix.mappedPortsList;
+        matchedFeederSet.addAll(prefix.feederList);
+        endConnections.addAll(prefix.endConnections);
+    }
+
+    /**
+     * Keeps the traversal of the current walk so that it can be repeated by
+     * {@link #startWalk(TraceResultCache.Walk, Prefix)}.
+     *
+     * @param ends the connections the traversal ended on
+     * @return the traversal of the walk
+     */
+    Prefix savePrefix(List<PortConnectionDetails> ends)
+    {
+        retained = true;
+        return new Prefix(walk, overlay, new ArrayList<>(feederList), mappedPortsList, new ArrayList<>(ends));
+    }
+
+    /**
+     * @return the state of the connections reached by the current walk
+     */
+    public Overlay getOverlay()
+    {
+        return overlay;
+    }
+
+    TraceResultCache.Walk getWalk()
+    {
+        return walk;
+    }
+
+    /**
+     * @return true if the current walk is recorded, and so keeps the lists
+     *         for the cell connectivity tree view
+     */
+    boolean isRecorded()
+    {
+        return walk != null;
+    }
+
+    /**
+     * The buffers a junction device hop collects the ports its mappings lead
+     * to in: the ports, their connection details and the frequencies passed
+     * to each, in the order of their first mapping. Cleared by the caller.
+     */
+    List<Port> getHopPorts()
+    {
+        return hopPorts;
+    }
+
+    List<PortConnectionDetails> getHopConnections()
+    {
+        return hopConnections;
+    }
+
+    List<FrequencyIntervalSet> getHopFrequencies()
+    {
+        return hopFrequencies;
+    }
+
+    /**
+     * @return the buffer the mapped ports of a hop are returned in for a walk
+     *         that is not recorded
+     */
+    List<PortConnectionDetails> getHopMappedPorts()
+    {
+        return hopMappedPorts;
+    }
+
+    Set<Feeder> getMatchedFeederSet()
+    {
+        return matchedFeederSet;
+    }
+
+    /**
+     * Restricts the walks of the context to a region of the graph, when only
+     * what reaches the ports of the region is wanted.
+     *
+     * @param region the ordinals of the ports a walk may reach, or null to
+     *               follow the whole graph
+     */
+    void setRegion(BitSet region)
+    {
+        this.region = region;
+    }
+
+    /**
+     * @param port the port ordinal in the graph, or
+     *             {@link ConnectivityGraph#NONE}
+     * @return true if the walks are restricted to a region that does not
+     *         contain the port
+     */
+    boolean isOutsideRegion(int port)
+    {
+        return region != null && (port == ConnectivityGraph.NONE || !region.get(port));
+    }
+
+    /**
+     * Marks a port as reached by the current walk.
+     *
+     * @param port the port ordinal in the graph, or
+     *             {@link ConnectivityGraph#NONE} for a port that is not
+     *             connected
+     * @return true if the port had not been reached yet
+     */
+    boolean markVisited(int port)
+    {
+        if (port == ConnectivityGraph.NONE)
+        {
+            if (visitedUnconnected)
+                return false;
+            visitedUnconnected = true;
+            return true;
+        }
+        if (visitedPorts.get(port))
+            return false;
+        visitedPorts.set(port);
+        return true;
+    }
+
+    void push(PortConnectionDetails connection)
+    {
+        if (stackSize == stack.length)
+            stack = Arrays.copyOf(stack, stackSize * 2);
+        stack[stackSize++] = connection;
+    }
+
+    PortConnectionDetails pop()
+    {
+        PortConnectionDetails connection = stack[--stackSize];
+        stack[stackSize] = null;
+        return connection;
+    }
+
+    boolean isStackEmpty()
+    {
+        return stackSize == 0;
+    }
+
+    /**
+     * @return the buffer the current walk collects the connections it ends on
+     */
+    List<PortConnectionDetails> getEndConnections()
+    {
+        return endConnections;
+    }
+
+    /**
+     * @return the feeders matched by the current walk, for the cell
+     *         connectivity tree view
+     */
+    List<Feeder> getFeederList()
+    {
+        return feederList;
+    }
+
+    /**
+     * @return the ports mapped through each junction device by the current
+     *         walk, for the cell connectivity tree view
+     */
+    List<List<PortConnectionDetails>> getMappedPortsList()
+    {
+        return mappedPortsList;
+    }
+
+    /**
+     * Adds a row to the lists for the cell connectivity tree view for a
+     * connection that passes the junction device at its end.
+     */
+    void addTreeRow(PortConnectionDetails connection, Feeder feeder, List<PortConnectionDetails> mappedPorts)
+    {
+        treeRows.put(connection, mappedPortsList.size());
+        feederList.add(feeder);
+        mappedPortsList.add(mappedPorts);
+    }
+
+    /**
+     * Replaces the mapped ports in the row added for a connection, when it is
+     * reached again and maps to more ports.
+     */
+    void setTreeRow(PortConnectionDetails connection, List<PortConnectionDetails> mappedPorts)
+    {
+        Integer row = treeRows.get(connection);
+        if (row != null)
+            mappedPortsList.set(row, mappedPorts);
+    }
+
+    void touch(Object component)
+    {
+        if (walk != null)
+            walk.touch(component);
+    }
+
+    void addVisit(Feeder feeder, Segment segment, boolean matched)
+    {
+        if (walk != null)
+            walk.addVisit(feeder, segment, matched);
+    }
+
+    void replaceVisit(Feeder feeder, Segment segment, boolean matched)
+    {
+        if (walk != null)
+            walk.replaceVisit(feeder, segment, matched);
+    }
+
+    public Segment getSegment(PortConnectionDetails connection)
+    {
+        return overlay.getSegment(connection);
+    }
+
+    void setSegment(PortConnectionDetails connection, Segment segment)
+    {
+        overlay.segments.put(connection, segment);
+    }
+
+    /**
+     * @param connection the connection details
+     * @return the frequencies that reach the connection in the current walk,
+     *         never null
+     */
+    public FrequencyIntervalSet getIncomingFrequencies(PortConnectionDetails connection)
+    {
+        return overlay.getIncomingFrequencies(connection);
+    }
+
+    /**
+     * Adds frequencies to those that reach a connection in the current walk.
+     * If they add to the coverage of the connection it is marked as pending,
+     * as what lies beyond it has to be traced again.
+     *
+     * @param connection  the connection details
+     * @param frequencies the frequencies arriving at the connection
+     * @return true if the connection had not been reached before or the
+     *         frequencies are not all already covered
+     */
+    boolean addIncomingFrequencies(PortConnectionDetails connection, FrequencyIntervalSet frequencies)
+    {
+        FrequencyIntervalSet current = overlay.incomingRanges.get(connection);
+        if (current != null && current.containsAll(frequencies))
+            return false;
+        overlay.incomingRanges.put(connection, current == null ? frequencies : current.union(frequencies));
+        int port = graph.indexOf(connection.getPort());
+        if (port == ConnectivityGraph.NONE)
+            pendingUnindexed.add(connection);
+        else
+            pendingPorts.set(port);
+        return true;
+    }
+
+    /**
+     * @param connection the connection details
+     * @return true if the coverage of the connection has grown since it was
+     *         last traced
+     */
+    boolean isPending(PortConnectionDetails connection)
+    {
+        int port = graph.indexOf(connection.getPort());
+        return port == ConnectivityGraph.NONE ? pendingUnindexed.contains(connection) : pendingPorts.get(port);
+    }
+
+    /**
+     * Clears the pending mark of a connection that is about to be traced.
+     *
+     * @param connection the connection details
+     * @return true if the connection was pending
+     */
+    boolean takePending(PortConnectionDetails connection)
+    {
+        int port = graph.indexOf(connection.getPort());
+        if (port == ConnectivityGraph.NONE)
+            return pendingUnindexed.remove(connection);
+        boolean pending = pendingPorts.get(port);
+        pendingPorts.clear(port);
+        return pending;
+    }
+
+    public Boolean isPass(PortConnectionDetails connection)
+    {
+        return overlay.isPass(connection);
+    }
+
+    void setPass(PortConnectionDetails connection, boolean pass)
+    {
+        overlay.passes.put(connection, pass);
+    }
+
+    /**
+     * Records a mapping a connection was reached through, for the cell
+     * connectivity tree view. Only kept for a recorded walk.
+     */
+    void addMapping(PortConnectionDetails connection, JunctionDeviceTypeIntPortMap mapping)
+    {
+        if (walk == null)
+            return;
+        List<JunctionDeviceTypeIntPortMap> list = overlay.mappings.computeIfAbsent(connection, key -> new ArrayList<>());
+        if (!list.contains(mapping))
+            list.add(mapping);
+    }
+
+    /**
+     * The traversal of a walk from a transceiver port: what it reached and
+     * recorded before the fit at the antennas.
+     */
+    static class Prefix
+    {
+        private final TraceResultCache.Walk walk;
+        private final Overlay overlay;
+        private final List<Feeder> feederList;
+        private final List<List<PortConnectionDetails>> mappedPortsList;
+        private final List<PortConnectionDetails> endConnections;
+
+        private Prefix(TraceResultCache.Walk walk, Overlay overlay, List<Feeder> feederList,
+                List<List<PortConnectionDetails>> mappedPortsList, List<PortConnectionDetails> endConnections)
+        {
+            this.walk = walk;
+            this.overlay = overlay;
+            this.feederList = feederList;
+            this.mappedPortsList = mappedPortsList;
+            this.endConnections = endConnections;
+        }
+    }
+
+    /**
+     * The state of the connections reached by a single walk: the values a
+     * trace used to set on the connection details themselves. Walks that
+     * repeat a traversal share its state, each with its own segment.
+     */
+    public static class Overlay
+    {
+        private final Map<PortConnectionDetails, Segment> segments;
+        private final Map<PortConnectionDetails, FrequencyIntervalSet> incomingRanges;
+        private final Map<PortConnectionDetails, Boolean> passes;
+        private final Map<PortConnectionDetails, List<JunctionDeviceTypeIntPortMap>> mappings;
+        // The segment of the walk that repeats the traversal, null for the walk that made it
+        private final Segment segment;
+
+        Overlay()
+        {
+            segments = new IdentityHashMap<>();
+            incomingRanges = new IdentityHashMap<>();
+            passes = new IdentityHashMap<>();
+            mappings = new IdentityHashMap<>();
+            segment = null;
+        }
+
+        private Overlay(Overlay traversal, Segment segment)
+        {
+            segments = traversal.segments;
+            incomingRanges = traversal.incomingRanges;
+            passes = traversal.passes;
+            mappings = traversal.mappings;
+            this.segment = segment;
+        }
+
+        /**
+         * @param segment the segment of a walk that repeats the traversal
+         * @return the state of the traversal, with the connections it
+         *         reached labelled with the segment
+         */
+        Overlay withSegment(Segment segment)
+        {
+            return new Overlay(this, segment);
+        }
+
+        private void clear()
+        {
+            segments.clear();
+            incomingRanges.clear();
+            passes.clear();
+            mappings.clear();
+        }
+
+        public Segment getSegment(PortConnectionDetails connection)
+        {
+            Segment traced = segments.get(connection);
+            return traced != null && segment != null ? segment : traced;
+        }
+
+        /**
+         * @param connection the connection details
+         * @return the frequencies that reached the connection, or the empty
+         *         set if the walk did not reach it
+         */
+        public FrequencyIntervalSet getIncomingFrequencies(PortConnectionDetails connection)
+        {
+            FrequencyIntervalSet frequencies = incomingRanges.get(connection);
+            return frequencies == null ? FrequencyIntervalSet.EMPTY : frequencies;
+        }
+
+        /**
+         * @param connection the connection details
+         * @return the frequency ranges that reached the connection, or an
+         *         empty list if the walk did not reach it
+         */
+        public List<FrequencyRange> getIncomingFrequencyRanges(PortConnectionDetails connection)
+        {
+            return getIncomingFrequencies(connection).toRanges();
+        }
+
+        /**
+         * @param connection the connection details
+         * @return true if the walk passed through the junction device at the
+         *         end of the connection, false if it stopped there, null if it
+         *         did not reach a junction device through the connection
+         */
+        public Boolean isPass(PortConnectionDetails connection)
+        {
+            return passes.get(connection);
+        }
+
+        public List<JunctionDeviceTypeIntPortMap> getMappings(PortConnectionDetails connection)
+        {
+            List<JunctionDeviceTypeIntPortMap> list = mappings.get(connection);
+            return list == null ? Collections.<JunctionDeviceTypeIntPortMap>emptyList() : Collections.unmodifiableList(list);
+        }
+
+        /**
+         * Copies the state of the walk onto the fresh connection details of a
+         * publication.
+         *
+         * @param publication the connection details to be written to
+         */
+        void publish(Publication publication)
+        {
+            for (PortConnectionDetails connection : segments.keySet())
+            {
+                publication.copyOf(connection).setSegment(getSegment(connection));
+            }
+            for (Map.Entry<PortConnectionDetails, FrequencyIntervalSet> e : incomingRanges.entrySet())
+            {
+                PortConnectionDetails copy = publication.copyOf(e.getKey());
+                copy.getIncomingFrequencyRanges().clear();
+                copy.getIncomingFrequencyRanges().addAll(e.getValue().toRanges());
+            }
+            for (Map.Entry<PortConnectionDetails, Boolean> e : passes.entrySet())
+            {
+                if (e.getValue())
+                    publication.copyOf(e.getKey()).setPass();
+                else
+                    publication.copyOf(e.getKey()).setStop();
+            }
+            for (Map.Entry<PortConnectionDetails, List<JunctionDeviceTypeIntPortMap>> e : mappings.entrySet())
+            {
+                PortConnectionDetails copy = publication.copyOf(e.getKey());
+                for (JunctionDeviceTypeIntPortMap mapping : e.getValue())
+                {
+                    copy.addMapping(mapping);
+                }
+            }
+        }
+    }
+
+    /**
+     * The connection details a walk is published onto, built afresh by the
+     * devices the walk reached.
+     */
+    static class Publication
+    {
+        private final Map<DeviceBase, Map<Port, PortConnectionDetails>> deviceConnections = new IdentityHashMap<>();
+        private final Map<PortConnectionDetails, PortConnectionDetails> copies = new IdentityHashMap<>();
+        private final Map<List<List<PortConnectionDetails>>, List<List<PortConnectionDetails>>> mappedPortsLists = new IdentityHashMap<>();
+
+        /**
+         * @param connection a connection held by the graph
+         * @return the fresh connection details of the same port
+         */
+        PortConnectionDetails copyOf(PortConnectionDetails connection)
+        {
+            PortConnectionDetails copy = copies.get(connection);
+            if (copy == null)
+            {
+                DeviceBase device = connection.getDevice();
+                Map<Port, PortConnectionDetails> connections = deviceConnections.get(device);
+                if (connections == null)
+                {
+                    connections = new IdentityHashMap<>();
+                    List<PortConnectionDetails> built = device == null ? null : device.buildPortConnectionsList();
+                    if (built != null)
+                    {
+                        for (PortConnectionDetails c : built)
+                        {
+                            connections.put(c.getPort(), c);
+                        }
+                    }
+                    deviceConnections.put(device, connections);
+                }
+                copy = connections.get(connection.getPort());
+                // Only when the port has gone from its device since the trace
+                if (copy == null)
+                    copy = connection;
+                copies.put(connection, copy);
+            }
+            return copy;
+        }
+
+        /**
+         * @param details the cell connection details of a walk
+         * @return the same details, with the mapped ports replaced by their
+         *         fresh connection details
+         */
+        CellConnectionDetails copyOf(CellConnectionDetails details)
+        {
+            CellConnectionDetails copy = new CellConnectionDetails();
+            copy.setConnectedPort(details.getConnectedPort());
+            copy.setConnectedSegment(details.getConnectedSegment());
+            copy.setTransceiverFuncType(details.getTransceiverFuncType());
+            copy.setMobilesCell(details.getMobilesCell());
+            copy.setMatchedFeederList(details.getMatchedFeederList());
+            List<List<PortConnectionDetails>> mappedPortsList = details.getMappedPortsList();
+            if (mappedPortsList != null)
+            {
+                // The details of a walk share its list, so each list is copied once
+                List<List<PortConnectionDetails>> mappedCopy = mappedPortsLists.get(mappedPortsList);
+                if (mappedCopy == null)
+                {
+                    mappedCopy = new ArrayList<>(mappedPortsList.size());
+                    for (List<PortConnectionDetails> mappedPorts : mappedPortsList)
+                    {
+                        List<PortConnectionDetails> portsCopy = new ArrayList<>(mappedPorts.size());
+                        for (PortConnectionDetails connection : mappedPorts)
+                        {
+                            portsCopy.add(copyOf(connection));
+                        }
+                        mappedCopy.add(portsCopy);
+                    }
+                    mappedPortsLists.put(mappedPortsList, mappedCopy);
+                }
+                copy.setMappedPortsList(mappedCopy);
+            }
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2015 Telstra Corporation.
+ *
+ * This program is the property of Telstra Corporation.
+ * You may not use this code without the express permission of
+ * the designated business owner of the software in Telstra.
+ * Parts of this program are copyright Dialog Information Technology
+ * and licensed for the use of Telstra Corporation as part of this
+ * software.
+ */
+package canrad.celltrace;
+
+import canrad.geometry.components.Feeder;
+import canrad.geometry.components.Port;
+import canrad.geometry.components.Segment;
+import canrad.geometry.components.Transceiver;
+import canrad.layout.models.CellConnectionDetails;
+import canrad.reference.components.MobilesCell;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The TraceResultCache class keeps the walks of each cell trace, keyed by
+ * transceiver and mobiles cell, with the components each walk touched. The
+ * cache is not thread safe and is only used from the thread that edits the
+ * site.
+ *
+ * @author
+ */
+public class TraceResultCache
+{
+    private final Map<Transceiver, Map<MobilesCell, Entry>> entries = new HashMap<>();
+    private final Map<Object, Set<Walk>> touchedBy = new IdentityHashMap<>();
+    // The reference data of the graph the cached traces were walked on
+    private SiteReferenceData tracedOn;
+
+    /**
+     * @param transceiver the traced transceiver
+     * @param cell        the traced cell
+     * @return the cached trace, or null if the cell has not been traced since
+     *         the last edit of its path
+     */
+    public Entry get(Transceiver transceiver, MobilesCell cell)
+    {
+        Map<MobilesCell, Entry> cells = entries.get(transceiver);
+        return cells == null ? null : cells.get(cell);
+    }
+
+    /**
+     * Starts recording a new trace. The entry is only cached once it is
+     * passed to {@link #put(Entry)}. Does not use the state of any cache, so
+     * may be called from any thread.
+     *
+     * @param transceiver the traced transceiver
+     * @param cell        the traced cell
+     * @return the entry to be recorded
+     */
+    public static Entry begin(Transceiver transceiver, MobilesCell cell)
+    {
+        return new Entry(transceiver, cell);
+    }
+
+    /**
+     * Discards the cached traces if they were walked on other reference data
+     * than that of the graph about to be traced.
+     *
+     * @param graph the current graph of the site
+     * @return false if the cached traces have been discarded
+     */
+    public boolean validate(ConnectivityGraph graph)
+    {
+        SiteReferenceData data = graph.getReferenceData();
+        boolean valid = data == tracedOn;
+        if (!valid)
+            clear();
+        tracedOn = data;
+        return valid;
+    }
+
+    /**
+     * Records that the cached traces affected by an edit have been handled, so
+     * the others are kept.
+     *
+     * @param data the reference data of the graph after the edit
+     */
+    public void editHandled(SiteReferenceData data)
+    {
+        tracedOn = data;
+    }
+
+    public void put(Entry entry)
+    {
+        remove(get(entry.transceiver, entry.cell));
+        entries.computeIfAbsent(entry.transceiver, key -> new HashMap<>()).put(entry.cell, entry);
+        for (Walk walk : entry.walks)
+        {
+            index(walk);
+        }
+    }
+
+    /**
+     * Discards every cached trace with a walk that touched the edited
+     * component.
+     *
+     * @param component the edited feeder, port, segment or device
+     * @see #walksTouching(Object)
+     */
+    public void invalidate(Object component)
+    {
+        Set<Entry> touching = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Walk walk : walksTouching(component))
+        {
+            touching.add(walk.entry);
+        }
+        for (Entry entry : touching)
+        {
+            remove(entry);
+        }
+    }
+
+    /**
+     * Finds the cached walks that touched the edited component or its device.
+     *
+     * @param component the edited feeder, port, segment or device
+     * @return the walks affected by the edit
+     */
+    public Set<Walk> walksTouching(Object component)
+    {
+        Set<Walk> walks = Collections.newSetFromMap(new IdentityHashMap<>());
+        addTouching(component, walks);
+        if (component instanceof Segment)
+        {
+            component = ((Segment) component).getParentPort();
+            addTouching(component, walks);
+        }
+        if (component instanceof Port)
+        {
+            addTouching(((Port) component).getParentDevice(), walks);
+        }
+        return walks;
+    }
+
+    /**
+     * Replaces a walk of a cached trace with the result of walking it again.
+     *
+     * @param walk      the cached walk
+     * @param retraced  the new walk from the same transceiver segment
+     */
+    public void replace(Walk walk, Walk retraced)
+    {
+        assert walk.entry == retraced.entry : "replace walks of the same trace";
+        unindex(walk);
+        List<Walk> walks = walk.entry.walks;
+        walks.set(walks.indexOf(walk), retraced);
+        if (get(walk.entry.transceiver, walk.entry.cell) == walk.entry)
+            index(retraced);
+    }
+
+    /**
+     * Discards a cached trace.
+     *
+     * @param entry the trace to be discarded
+     */
+    public void discard(Entry entry)
+    {
+        remove(entry);
+    }
+
+    public void clear()
+    {
+        entries.clear();
+        touchedBy.clear();
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (Map<MobilesCell, Entry> cells : entries.values())
+        {
+            size += cells.size();
+        }
+        return size;
+    }
+
+    private void addTouching(Object component, Set<Walk> walks)
+    {
+        Set<Walk> touching = component == null ? null : touchedBy.get(component);
+        if (touching != null)
+            walks.addAll(touching);
+    }
+
+    private void index(Walk walk)
+    {
+        for (Object component : walk.footprint)
+        {
+            touchedBy.computeIfAbsent(component, key -> Collections.newSetFromMap(new IdentityHashMap<>())).add(walk);
+        }
+    }
+
+    private void unindex(Walk walk)
+    {
+        for (Object component : walk.footprint)
+        {
+            Set<Walk> touching = touchedBy.get(component);
+            if (touching != null)
+            {
+                touching.remove(walk);
+                if (touching.isEmpty())
+                    touchedBy.remove(component);
+            }
+        }
+    }
+
+    private void remove(Entry entry)
+    {
+        if (entry == null)
+            return;
+        Map<MobilesCell, Entry> cells = entries.get(entry.transceiver);
+        if (cells != null && cells.get(entry.cell) == entry)
+        {
+            cells.remove(entry.cell);
+            if (cells.isEmpty())
+                entries.remove(entry.transceiver);
+        }
+        for (Walk walk : entry.walks)
+        {
+            unindex(walk);
+        }
+    }
+
+    /**
+     * The recorded walks of a single cell trace.
+     */
+    public static class Entry
+    {
+        private final Transceiver transceiver;
+        private final MobilesCell cell;
+        private final List<Walk> walks = new ArrayList<>();
+
+        private Entry(Transceiver transceiver, MobilesCell cell)
+        {
+            this.transceiver = transceiver;
+            this.cell = cell;
+        }
+
+        public Transceiver getTransceiver()
+        {
+            return transceiver;
+        }
+
+        public MobilesCell getCell()
+        {
+            return cell;
+        }
+
+        public List<Walk> getWalks()
+        {
+            return Collections.unmodifiableList(walks);
+        }
+
+        public List<CellConnectionDetails> getConnections()
+        {
+            List<CellConnectionDetails> connections = new ArrayList<>();
+            for (Walk walk : walks)
+            {
+                connections.addAll(walk.connections);
+            }
+            return connections;
+        }
+
+        public List<FeederVisit> getVisits()
+        {
+            List<FeederVisit> visits = new ArrayList<>();
+            for (Walk walk : walks)
+            {
+                visits.addAll(walk.visits);
+            }
+            return visits;
+        }
+
+        /**
+         * Starts recording the walk from a transceiver segment. The walk is
+         * appended to the trace.
+         */
+        Walk beginWalk(Port port, Segment segment)
+        {
+            Walk walk = newWalk(port, segment);
+            walks.add(walk);
+            return walk;
+        }
+
+        /**
+         * Starts recording a walk that will replace an existing walk of the
+         * trace.
+         */
+        Walk newWalk(Port port, Segment segment)
+        {
+            Walk walk = new Walk(this, port, segment);
+            walk.touch(transceiver);
+            walk.touch(port);
+            walk.touch(segment);
+            return walk;
+        }
+    }
+
+    /**
+     * The result and footprint of the walk from a single transceiver segment.
+     */
+    public static class Walk
+    {
+        private final Entry entry;
+        private final Port port;
+        private final Segment segment;
+        private final List<CellConnectionDetails> connections = new ArrayList<>();
+        private final List<FeederVisit> visits = new ArrayList<>();
+        private final Set<Object> footprint = Collections.newSetFromMap(new IdentityHashMap<>());
+        private TraceContext.Overlay overlay;
+
+        private Walk(Entry entry, Port port, Segment segment)
+        {
+            this.entry = entry;
+            this.port = port;
+            this.segment = segment;
+        }
+
+        public Entry getEntry()
+        {
+            return entry;
+        }
+
+        public Port getPort()
+        {
+            return port;
+        }
+
+        public Segment getSegment()
+        {
+            return segment;
+        }
+
+        public List<CellConnectionDetails> getConnections()
+        {
+            return Collections.unmodifiableList(connections);
+        }
+
+        public List<FeederVisit> getVisits()
+        {
+            return Collections.unmodifiableList(visits);
+        }
+
+        void touch(Object component)
+        {
+            if (component != null)
+                footprint.add(component);
+        }
+
+        /**
+         * @return the state of the connections reached by the walk
+         */
+        public TraceContext.Overlay getOverlay()
+        {
+            return overlay;
+        }
+
+        void setOverlay(TraceContext.Overlay overlay)
+        {
+            this.overlay = overlay;
+        }
+
+        void addVisit(Feeder feeder, Segment segment, boolean matched)
+        {
+            touch(feeder);
+            visits.add(new FeederVisit(feeder, segment, matched));
+        }
+
+        /**
+         * Records the footprint and visits of a walk from the same port as if
+         * they were made from the segment of this walk.
+         */
+        void replay(Walk template)
+        {
+            footprint.addAll(template.footprint);
+            if (template.segment != segment)
+                footprint.remove(template.segment);
+            for (FeederVisit visit : template.visits)
+            {
+                visits.add(new FeederVisit(visit.feeder, segment, visit.matched));
+            }
+        }
+
+        /**
+         * Changes the outcome of the last visit of a feeder for a segment.
+         */
+        void replaceVisit(Feeder feeder, Segment segment, boolean matched)
+        {
+            for (int i = visits.size() - 1; i >= 0; i--)
+            {
+                FeederVisit visit = visits.get(i);
+                if (visit.feeder == feeder && visit.segment == segment)
+                {
+                    visits.set(i, new FeederVisit(feeder, segment, matched));
+                    return;
+                }
+            }
+            addVisit(feeder, segment, matched);
+        }
+
+        void addConnections(List<CellConnectionDetails> list)
+        {
+            connections.addAll(list);
+        }
+    }
+
+    /**
+     * A feeder reached by a walk and whether the traced segment passed
+     * through it.
+     */
+    public static class FeederVisit
+    {
+        public final Feeder feeder;
+        public final Segment segment;
+        public final boolean matched;
+        // The cell of the segment when the visit was made, so that it can be taken back off the feeder after an edit
+        public final MobilesCell cell;
+
+        FeederVisit(Feeder feeder, Segment segment, boolean matched)
+        {
+            this.feeder = feeder;
+            this.segment = segment;
+            this.matched = matched;
+            this.cell = segment == null ? null : segment.getMobilesCell();
+        }
+    }
+}
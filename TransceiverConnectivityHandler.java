@@ -11,34 +11,40 @@
 package canrad.celltrace;
 
 import canrad.geometry.components.Antenna;
-import canrad.geometry.components.DeviceBase;
 import canrad.geometry.components.Feeder;
 import canrad.geometry.components.JunctionDevice;
 import canrad.geometry.components.Port;
 import canrad.geometry.components.Segment;
+import canrad.geometry.components.SiteExport;
 import canrad.geometry.components.SiteExportViewModel;
 import canrad.geometry.components.Transceiver;
 import canrad.layout.models.CanradModelVisualState;
 import canrad.layout.models.CellConnectionDetails;
-import canrad.layout.models.FrequencyRange;
 import canrad.layout.models.PortConnectionDetails;
-import canrad.misc.ModelBaseTechColour;
+import canrad.misc.ModelBaseTechVisualState;
+import canrad.misc.TechnologyRank;
 import static canrad.misc.ModelBaseTechVisualState.techMap;
-import canrad.reference.components.AntennaTypePortSegment;
-import canrad.reference.components.CanradLibrary;
-import canrad.reference.components.Frequency;
 import canrad.reference.components.MobilesCell;
-import canrad.reference.components.MobilesFrequencyBand;
 import canrad.reference.components.TransceiverFuncType;
 import dialog.geometry.viewmodel.ModelVisualState;
 import dialog.geometry.visuals.InteractiveVisualLocation;
 import dialog.geometry.visuals.ViewportStupid;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * The TransceiverConnectivityHandler class provides functions used to trace a
@@ -56,27 +62,34 @@ import java.util.TreeSet;
  */
 public class TransceiverConnectivityHandler extends CellConnectivityHelper
 {
+    // Below this number of transceivers to walk the parallel trace runs on the calling thread
+    private static final int PARALLEL_THRESHOLD = 8;
+
     protected ViewportStupid viewport = null;
-    private List<Feeder> feederList;
+    private ConnectivityGraph graph;
     private final HashMap<Feeder, FeederTechnology> feederTechnologyMap;
-    private List<Port> handledPorts;
+    private CellOrdinals cellOrdinals = new CellOrdinals();
 
-    private final List<InteractiveVisualLocation> highlightList;
+    private final HighlightManager highlights;
     private boolean isCellTrace;
-    private List<List<PortConnectionDetails>> mappedPortsList;
-    private final Set<Feeder> matchedFeederSet = new HashSet<>();
+    private final Set<TraceResultCache.Entry> appliedTraces = Collections.newSetFromMap(new IdentityHashMap<>());
     private final SiteExportViewModel siteExportViewModel;
+    private final SiteExport siteExport;
+    private final TraceResultCache traceCache = new TraceResultCache();
+    // Counts the edits reported to the handler, so that views built from a trace know when to build again
+    private int editCount;
 
     /**
      *
      * @param viewModel
+     * @param siteExport the site shown by the view model, whose compiled graph
+     *                   is traced
      */
-    public TransceiverConnectivityHandler(SiteExportViewModel viewModel)
+    public TransceiverConnectivityHandler(SiteExportViewModel viewModel, SiteExport siteExport)
     {
-        highlightList = new ArrayList<>();
-        mappedPortsList = new ArrayList<>();
-        feederList = new ArrayList<>();
+        highlights = new HighlightManager(CanradModelVisualState.Standard);
         siteExportViewModel = viewModel;
+        this.siteExport = siteExport;
         feederTechnologyMap = new HashMap<>();
         isCellTrace = false;
     }
@@ -88,19 +101,28 @@ public class TransceiverConnectivityHandler extends CellConnectivityHelper
      */
     public void clearHighlights(String usage)
     {
-        for (InteractiveVisualLocation vl : highlightList)
-        {
-            vl.extractVisualStateMap(CanradModelVisualState.Standard, viewport, usage);
-            vl.setVisualState(CanradModelVisualState.Standard, false, viewport);
-        }
-        highlightList.clear();
+        highlights.clear(viewport, usage);
+        resetFeederTechnologies();
+    }
+
+    /**
+     * Forgets the feeder technologies of the applied traces without changing
+     * the highlights; the next {@link #setSegmentVisualStates(String)} only
+     * changes the feeders whose highlight differs.
+     */
+    private void resetFeederTechnologies()
+    {
         feederTechnologyMap.clear();
+        cellOrdinals = new CellOrdinals();
+        appliedTraces.clear();
     }
 
-    //TODO
+    /**
+     * @return the highlighted visual locations, each once. The list is a copy.
+     */
     public List<InteractiveVisualLocation> getHighlightList()
     {
-        return highlightList;
+        return highlights.getHighlighted();
     }
 
     public void setIsCellTrace(boolean value)
@@ -111,74 +133,62 @@ public class TransceiverConnectivityHandler extends CellConnectivityHelper
     public void setSegmentVisualStates(String usage)
     {
         boolean isTechnologyView = siteExportViewModel.getCurrentSpecialVisualState().name.equals("Technology");
-        boolean showRET = !isCellTrace;
+        highlights.beginFrame();
         for (FeederTechnology ft : feederTechnologyMap.values())
         {
-            if (showRET)
+            setFeederVisualState(ft, isTechnologyView);
+        }
+        highlights.commit(viewport, usage);
+    }
+
+    private void highlight(Feeder feeder, ModelVisualState vs)
+    {
+        InteractiveVisualLocation vl = (InteractiveVisualLocation) feeder.getVisualLocation();
+        if (vl != null)
+            highlights.highlight(vl, vs);
+    }
+
+    private void setFeederVisualState(FeederTechnology ft, boolean isTechnologyView)
+    {
+        boolean showRET = !isCellTrace;
+        if (showRET)
+        {
+            boolean hasRET = graph.isRet(ft.feeder);
+            if (hasRET)
             {
-                boolean hasRET = ft.feeder.getAttributes().contains("RET");
-                if (hasRET)
+                ModelVisualState vs = techMap.getValueForKey("RET");
+                if (vs != null)
                 {
-                    ModelVisualState vs = techMap.getValueForKey("RET");
-                    if (vs != null)
-                    {
-                        InteractiveVisualLocation vl = (InteractiveVisualLocation) ft.feeder.getVisualLocation();
-                        if (vl != null)
-                        {
-                            vl.addVisualStateMap(CanradModelVisualState.Standard, vs, viewport, usage);
-                            vl.setVisualState(CanradModelVisualState.Standard, false, viewport);
-                            highlightList.add(vl);
-                        }
-                        continue;
-                    }
+                    highlight(ft.feeder, vs);
+                    return;
                 }
             }
-            List<MobilesCell> cellList = ft.getCellsOnFeeder(true, false);
-            if (cellList.size() > 0)
+        }
+        if (ft.hasMatched())
+        {
+            ModelVisualState vs;
+            if (isCellTrace && isTechnologyView)
+                vs = CanradModelVisualState.ConnectedMatched;
+            else
+            {
+                vs = ModelBaseTechVisualState.getVisualState(ft.getHighestTechRank(true));
+            }
+            if (vs != null)
+                highlight(ft.feeder, vs);
+        }
+        else
+        {
+            if (ft.hasMismatched())
             {
                 ModelVisualState vs;
-                if (isCellTrace && isTechnologyView)
-                    vs = CanradModelVisualState.ConnectedMatched;
+                if (this.isCellTrace)
+                    vs = CanradModelVisualState.ConnectedMismatched;
                 else
                 {
-                    String highestTech = ModelBaseTechColour.getHighestTechFunction().apply(cellList);
-                    vs = (highestTech != null) ? techMap.getValueForKey(highestTech) : null;
+                    vs = ModelBaseTechVisualState.getVisualState(ft.getHighestTechRank(false));
                 }
                 if (vs != null)
-                {
-                    InteractiveVisualLocation vl = (InteractiveVisualLocation) ft.feeder.getVisualLocation();
-                    if (vl != null)
-                    {
-                        vl.addVisualStateMap(CanradModelVisualState.Standard, vs, viewport, usage);
-                        vl.setVisualState(CanradModelVisualState.Standard, false, viewport);
-                        highlightList.add(vl);
-                    }
-                }
-            }
-            else
-            {
-                cellList = ft.getCellsOnFeeder(false, true);
-                if (cellList.size() > 0)
-                {
-                    ModelVisualState vs;
-                    if (this.isCellTrace)
-                        vs = CanradModelVisualState.ConnectedMismatched;
-                    else
-                    {
-                        String highestTech = ModelBaseTechColour.getHighestTechFunction().apply(cellList);
-                        vs = (highestTech != null) ? techMap.getValueForKey(highestTech) : null;
-                    }
-                    if (vs != null)
-                    {
-                        InteractiveVisualLocation vl = (InteractiveVisualLocation) ft.feeder.getVisualLocation();
-                        if (vl != null)
-                        {
-                            vl.addVisualStateMap(CanradModelVisualState.Standard, vs, viewport, usage);
-                            vl.setVisualState(CanradModelVisualState.Standard, false, viewport);
-                            highlightList.add(vl);
-                        }
-                    }
-                }
+                    highlight(ft.feeder, vs);
             }
         }
     }
@@ -194,11 +204,12 @@ public class TransceiverConnectivityHandler extends CellConnectivityHelper
     public Set<MobilesCell> retrieveTransceiverMobileCells(Transceiver transceiver)
     {
         Set<MobilesCell> cells = new TreeSet<>();
+        SiteReferenceData data = ConnectivityGraph.forSite(siteExport).getReferenceData();
 
         transceiver.getPorts().forEach(port
                 -> 
                 {
-                    Set<MobilesCell> portCells = retrieveTransceiverMobileCells(port);
+                    Set<MobilesCell> portCells = retrieveTransceiverMobileCells(data, port);
                     cells.addAll(portCells);
         });
         return cells;
@@ -213,176 +224,674 @@ public class TransceiverConnectivityHandler extends CellConnectivityHelper
      * @param transceiver the transceiver containing the segment with the cell
      * to be traced
      * @param cell the cell to be traced
-     * @param allowColourChange
+     * @param allowColourChange true to start a new set of highlights; the
+     * highlights of the previous trace stay until
+     * {@link #setSegmentVisualStates(String)} replaces them
      * @param usage
      * @return the list of connection details
      */
     public List<CellConnectionDetails> traceMobilesCellConnectivity(Transceiver transceiver, MobilesCell cell, boolean allowColourChange, String usage)
     {
         viewport = siteExportViewModel.getViewport(SiteExportViewModel.CONNECTIVITY_WORKSPACE_NAME);
-        if (allowColourChange && highlightList.size() > 0)
-            clearHighlights(usage);
+        graph = siteGraph();
+        // The highlights of the previous trace are kept, setSegmentVisualStates only changes the feeders that differ
+        if (allowColourChange && !highlights.isEmpty())
+            resetFeederTechnologies();
 
-        matchedFeederSet.clear();
-        mappedPortsList.clear();
-        feederList.clear();
+        return publish(traceCell(transceiver, cell));
+    }
 
-        List<CellConnectionDetails> cellConnections = new ArrayList<>();
+    /**
+     * Publishes the walks of a trace for the cell connectivity tree view.
+     *
+     * @param entry the trace
+     * @return the cell connection details of the trace
+     */
+    private static List<CellConnectionDetails> publish(TraceResultCache.Entry entry)
+    {
+        Map<TraceContext.Overlay, TraceContext.Publication> publications = new IdentityHashMap<>();
+        List<CellConnectionDetails> connections = new ArrayList<>();
+        for (TraceResultCache.Walk walk : entry.getWalks())
+        {
+            TraceContext.Publication publication = publications.get(walk.getOverlay());
+            if (publication == null)
+            {
+                publication = new TraceContext.Publication();
+                walk.getOverlay().publish(publication);
+                publications.put(walk.getOverlay(), publication);
+            }
+            for (CellConnectionDetails details : walk.getConnections())
+            {
+                connections.add(publication.copyOf(details));
+            }
+        }
+        return connections;
+    }
 
-        transceiver.getSortedPorts().stream().forEach(port
-                -> 
-                {
-                    port.getSegmentsList().stream().forEach(segment
-                            -> 
-                            {
-                                if (segment.getMobilesCell() == cell)
-                                {
-                                    cellConnections.addAll(findConnectivityForSegment(port, segment));
-                                    mappedPortsList = new ArrayList<>();
-                                    feederList = new ArrayList<>();
-                                }
-                    });
-        });
-        return cellConnections;
+    /**
+     * Traces the cell without changing the site model or any state of the
+     * handler.
+     *
+     * @param transceiver the transceiver containing the segments with the cell
+     * @param cell        the cell to be traced
+     * @return the recorded trace of the cell
+     */
+    public TraceResultCache.Entry traceMobilesCell(Transceiver transceiver, MobilesCell cell)
+    {
+        return walkCell(ConnectivityGraph.forSite(siteExport), transceiver, cell);
     }
 
-    private FeederTechnology addFeederTechnology(Feeder feeder)
+    /**
+     * Traces every mobiles cell configured on every transceiver of the site in
+     * a single pass.
+     *
+     * @param allowColourChange
+     * @param usage
+     * @return the per cell, per antenna and per feeder results of the trace
+     */
+    public SiteTraceResult traceSiteConnectivity(boolean allowColourChange, String usage)
     {
-        assert feeder != null : "addFeederTechnology feeder is not null";
-        FeederTechnology existing = feederTechnologyMap.get(feeder);
-        if (existing == null)
-            feederTechnologyMap.put(feeder, existing = new FeederTechnology(feeder));
-        return existing;
+        return traceSiteConnectivity(null, allowColourChange, usage);
     }
 
-    private FrequencyRange extractFrequencyRangeForSegment(Segment segment, DeviceBase device)
+    /**
+     * As {@link #traceSiteConnectivity(boolean, String)}, splitting the trace
+     * per transceiver across the given pool.
+     *
+     * @param pool              the pool to run the trace in, or null to trace
+     *                          on the calling thread. A site with few
+     *                          transceivers to walk is traced on the calling
+     *                          thread.
+     * @param allowColourChange
+     * @param usage
+     * @return the per cell, per antenna and per feeder results of the trace
+     */
+    public SiteTraceResult traceSiteConnectivity(ForkJoinPool pool, boolean allowColourChange, String usage)
     {
-        final CanradLibrary library = CanradLibrary.getInstance();
+        viewport = siteExportViewModel.getViewport(SiteExportViewModel.CONNECTIVITY_WORKSPACE_NAME);
+        graph = siteGraph();
+        if (allowColourChange && !highlights.isEmpty())
+            clearHighlights(usage);
+        feederTechnologyMap.clear();
+        cellOrdinals = new CellOrdinals();
+        appliedTraces.clear();
 
-        if (segment.getAntennaTypePortSegment() != null)
+        List<Transceiver> transceivers = new ArrayList<>();
+        for (int device = 0; device < graph.getDeviceCount(); device++)
         {
-            // Is an antenna segment, the frequency is on the ...
-            final AntennaTypePortSegment typePortSegment = segment.getAntennaTypePortSegment();
+            if (graph.getDeviceKind(device) == ConnectivityGraph.DEVICE_TRANSCEIVER)
+                transceivers.add((Transceiver) graph.getDevice(device));
+        }
 
-            // Save the frequency range defined in the antenna port segment for use during the search
-            return new FrequencyRange(typePortSegment.getMinFreq(), typePortSegment.getMaxFreq());
+        List<TransceiverCells> walks = new ArrayList<>();
+        List<TransceiverCells> plans = planTransceivers(graph, transceivers, walks);
+        if (pool == null || walks.size() < PARALLEL_THRESHOLD)
+            walkTransceivers(graph, walks, 0, walks.size());
+        else
+            pool.invoke(new TransceiverTraceTask(graph, walks, 0, walks.size()));
+
+        Map<Feeder, FeederTechnology> siteFeeders = new HashMap<>();
+        SiteTraceResult result = new SiteTraceResult(siteFeeders);
+        for (TransceiverCells plan : plans)
+        {
+            for (TraceResultCache.Entry entry : plan.entries)
+            {
+                if (traceCache.get(entry.getTransceiver(), entry.getCell()) != entry)
+                    traceCache.put(entry);
+                applyTrace(entry);
+                result.addConnections(entry.getCell(), entry.getConnections());
+            }
+        }
+        // The result keeps copies, later traces change the feeder technologies of the handler
+        for (FeederTechnology ft : feederTechnologyMap.values())
+        {
+            siteFeeders.put(ft.feeder, ft.copy());
         }
-        else if (segment.getTransceiverTypePortSegment() != null)
+        return result;
+    }
+
+    /**
+     * Notifies the handler that a feeder, port, segment or junction device of
+     * the site has been edited. Every edit of the site must be reported here
+     * or through {@link #retraceEdited(Object, boolean, String)}.
+     *
+     * @param component the edited component
+     */
+    public void componentEdited(Object component)
+    {
+        editCount++;
+        // Only the traces walked on the site as it was before the edit are kept
+        siteGraph();
+        traceCache.invalidate(component);
+        if (!(component instanceof Segment))
+            ConnectivityGraph.invalidate(siteExport);
+        else
+            ConnectivityGraph.invalidateReferenceData(siteExport);
+        traceCache.editHandled(ConnectivityGraph.forSite(siteExport).getReferenceData());
+    }
+
+    /**
+     * @return the number of edits reported through
+     *         {@link #componentEdited(Object)} and
+     *         {@link #retraceEdited(Object, boolean, String)}
+     */
+    public int getEditCount()
+    {
+        return editCount;
+    }
+
+    /**
+     * Re-traces the walks that crossed an edited component and patches the
+     * feeder technologies of the traces currently applied.
+     *
+     * @param component         the edited component
+     * @param allowColourChange true to refresh the visual state of the
+     *                          patched feeders
+     * @param usage
+     * @return the feeders whose technology has been patched
+     */
+    public Set<Feeder> retraceEdited(Object component, boolean allowColourChange, String usage)
+    {
+        viewport = siteExportViewModel.getViewport(SiteExportViewModel.CONNECTIVITY_WORKSPACE_NAME);
+        editCount++;
+        siteGraph();
+        Set<TraceResultCache.Walk> walks = traceCache.walksTouching(component);
+        if (!(component instanceof Segment))
+            ConnectivityGraph.invalidate(siteExport);
+        else
+            ConnectivityGraph.invalidateReferenceData(siteExport);
+        // The walks the edit affects are traced again or discarded below
+        graph = ConnectivityGraph.forSite(siteExport);
+        traceCache.editHandled(graph.getReferenceData());
+
+        boolean transceiverSide = isTransceiverSide(component);
+        Set<Feeder> patched = new HashSet<>();
+        Set<TraceResultCache.Entry> retraced = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (TraceResultCache.Walk walk : walks)
         {
+            TraceResultCache.Entry entry = walk.getEntry();
+            if (!retraced.add(entry))
+                continue;
+            if (!appliedTraces.contains(entry))
+            {
+                traceCache.discard(entry);
+                continue;
+            }
 
-            // If it has a mobiles frequency band, the frequency range is either the mobiles band (if provided) or the
-            // transceiver range
-            Double minFrequency, maxFrequency;
-            final Integer mobilesFreqBandId = segment.getMobilesFreqBandId();
-            if (mobilesFreqBandId != null)
+            if (transceiverSide)
             {
-                final MobilesFrequencyBand frequencyBand = library.getMobilesFrequencyBandById(mobilesFreqBandId);
-                minFrequency = frequencyBand.getMinFrequency();
-                maxFrequency = frequencyBand.getMaxFrequency();
+                for (TraceResultCache.Walk cellWalk : entry.getWalks())
+                {
+                    unpatch(cellWalk, patched);
+                }
+                appliedTraces.remove(entry);
+                for (TraceResultCache.Walk cellWalk : recordCell(entry.getTransceiver(), entry.getCell()))
+                {
+                    addVisitedFeeders(cellWalk, patched);
+                }
+                continue;
             }
-            else
+
+            // Re-walk every affected walk of the cell, the feeders matched by the other walks of the cell still count
+            for (TraceResultCache.Walk cellWalk : new ArrayList<>(entry.getWalks()))
             {
-                final Frequency trxFrequency = library.getFrequency(((Transceiver) device).getFrequencyTypeId());
-                minFrequency = trxFrequency.getFreqMHz();
-                maxFrequency = trxFrequency.getPartnerMHz();
+                if (!walks.contains(cellWalk))
+                    continue;
+                unpatch(cellWalk, patched);
+                TraceContext context = new TraceContext(graph, entry);
+                for (TraceResultCache.Walk other : entry.getWalks())
+                {
+                    for (TraceResultCache.FeederVisit visit : other.getVisits())
+                    {
+                        if (visit.matched && other != cellWalk)
+                            context.getMatchedFeederSet().add(visit.feeder);
+                    }
+                }
+                TraceResultCache.Walk retracedWalk = entry.newWalk(cellWalk.getPort(), cellWalk.getSegment());
+                context.startWalk(retracedWalk);
+                retracedWalk.addConnections(findConnectivityForSegment(context, cellWalk.getPort(), cellWalk.getSegment()));
+                traceCache.replace(cellWalk, retracedWalk);
+                applyVisits(retracedWalk);
+                addVisitedFeeders(retracedWalk, patched);
+            }
+        }
+
+        if (allowColourChange)
+        {
+            boolean isTechnologyView = siteExportViewModel.getCurrentSpecialVisualState().name.equals("Technology");
+            highlights.beginUpdate();
+            for (Feeder feeder : patched)
+            {
+                InteractiveVisualLocation vl = (InteractiveVisualLocation) feeder.getVisualLocation();
+                if (vl != null)
+                    highlights.remove(vl);
+                FeederTechnology ft = feederTechnologyMap.get(feeder);
+                if (ft != null && !ft.isEmpty())
+                    setFeederVisualState(ft, isTechnologyView);
+                else
+                    feederTechnologyMap.remove(feeder);
             }
-            return new FrequencyRange(minFrequency, maxFrequency);
+            highlights.commit(viewport, usage);
         }
-        return null;
+        return patched;
     }
 
-    private List<PortConnectionDetails> findAntennaConnectionPath(PortConnectionDetails connection)
+    public TraceResultCache getTraceCache()
     {
-        List<PortConnectionDetails> antennaConnections = new ArrayList<>();
-        handledPorts = new ArrayList<>();
+        return traceCache;
+    }
 
-        findConnectionPath(connection, antennaConnections);
-        return antennaConnections;
+    /**
+     * @return the graph of the site, with the cached traces checked against
+     *         it. If they are discarded the feeder technologies of the traces
+     *         applied so far are forgotten too, as they were traced on a site
+     *         that has since been edited.
+     */
+    private ConnectivityGraph siteGraph()
+    {
+        ConnectivityGraph siteGraph = ConnectivityGraph.forSite(siteExport);
+        if (!traceCache.validate(siteGraph))
+            resetFeederTechnologies();
+        return siteGraph;
+    }
+
+    /**
+     * Traces all the segments of the transceiver carrying the cell, or replays
+     * the cached result if none of the components on its paths have been
+     * edited since it was traced.
+     */
+    private TraceResultCache.Entry traceCell(Transceiver transceiver, MobilesCell cell)
+    {
+        TraceResultCache.Entry cached = traceCache.get(transceiver, cell);
+        if (cached != null)
+        {
+            applyTrace(cached);
+            return cached;
+        }
+        recordCell(transceiver, cell);
+        return traceCache.get(transceiver, cell);
     }
 
     /**
-     * Get all transceiver ports for the given feeder and recursively follow any
-     * junction devices.
+     * Walks all the segments of the transceiver carrying the cell and caches
+     * the recorded walks as a trace that is applied to the feeder
+     * technologies.
+     */
+    private List<TraceResultCache.Walk> recordCell(Transceiver transceiver, MobilesCell cell)
+    {
+        TraceResultCache.Entry entry = walkCell(graph, transceiver, cell);
+        traceCache.put(entry);
+        applyTrace(entry);
+        return entry.getWalks();
+    }
+
+    /**
+     * Walks all the segments of the transceiver carrying the cell in a new
+     * trace context. Only reads the state of the handler.
+     */
+    private TraceResultCache.Entry walkCell(ConnectivityGraph siteGraph, Transceiver transceiver, MobilesCell cell)
+    {
+        return walkTransceiver(siteGraph, transceiver, Collections.singletonList(cell)).get(0);
+    }
+
+    /**
+     * Walks the segments of the transceiver carrying any of the given cells.
      *
-     * @param feeder
-     * @param segments
+     * @return the trace of each cell, in the order of the cells
      */
-    private void findConnectionPath(PortConnectionDetails connection, List<PortConnectionDetails> antennaConnections)
+    private List<TraceResultCache.Entry> walkTransceiver(ConnectivityGraph siteGraph, Transceiver transceiver, List<MobilesCell> cells)
     {
-        // Keep track of the ports we have followed
-        Port port = connection.getConnectedPort();
-        Feeder feeder = connection.getFeeder();
-        if (handledPorts.contains(port))
+        Map<MobilesCell, TraceContext> contexts = new LinkedHashMap<>();
+        for (MobilesCell cell : cells)
         {
-            return;
+            contexts.put(cell, new TraceContext(siteGraph, TraceResultCache.begin(transceiver, cell)));
         }
-        handledPorts.add(port);
-        
-        if (connection.getFeeder() == null)
-            return;
 
-        if (connection.getConnectedDevice() == null)
+        // The shared traversals are recorded in a context of their own
+        TraceResultCache.Entry template = TraceResultCache.begin(transceiver, null);
+        TraceContext prefixContext = new TraceContext(siteGraph, template);
+        SiteReferenceData data = siteGraph.getReferenceData();
+        for (Port port : transceiver.getSortedPorts())
         {
-            addFeederTechnology(feeder).addSegmentMatched(connection.getSegment(), false);
-            return;
+            int dataPort = data.indexOf(port);
+            if (dataPort == ConnectivityGraph.NONE)
+                continue;
+            Map<FrequencyIntervalSet, TraceContext.Prefix> groups = new HashMap<>();
+            for (int s = data.getFirstSegment(dataPort); s < data.getEndSegment(dataPort); s++)
+            {
+                MobilesCell cell = data.getCell(s);
+                TraceContext context = cell == null ? null : contexts.get(cell);
+                if (context == null)
+                    continue;
+
+                Segment segment = data.getSegment(s);
+                FrequencyIntervalSet frequencies = siteGraph.getConnection(port) == null
+                        ? FrequencyIntervalSet.EMPTY : data.getFrequencies(s);
+                TraceContext.Prefix prefix = groups.get(frequencies);
+                if (prefix == null)
+                {
+                    prefixContext.startWalk(template.newWalk(port, segment));
+                    prefix = prefixContext.savePrefix(traceSegmentPath(prefixContext, port, segment));
+                    groups.put(frequencies, prefix);
+                }
+
+                TraceResultCache.Walk walk = context.getEntry().beginWalk(port, segment);
+                context.startWalk(walk, prefix);
+                walk.addConnections(findCellsForSegment(context, segment, context.getEndConnections()));
+            }
         }
 
-        // If the connected device is an Antenna, add it to the list and return
-        if (connection.getConnectedDevice() instanceof Antenna)
+        List<TraceResultCache.Entry> entries = new ArrayList<>();
+        for (TraceContext context : contexts.values())
         {
-            antennaConnections.add(connection);
-            return;
+            entries.add(context.getEntry());
         }
+        return entries;
+    }
 
-        // If the connected device is a Transceiver, we can't trace beyond so mark as a mis-match
-        if (connection.getConnectedDevice() instanceof Transceiver)
+    /**
+     * Finds the cells of each transceiver and takes the traces of those that
+     * are cached. Runs on the thread that owns the cache.
+     *
+     * @param walks the transceivers with cells that are not cached are added
+     *              to it
+     * @return the cells of each transceiver, in transceiver order
+     */
+    private List<TransceiverCells> planTransceivers(ConnectivityGraph siteGraph, List<Transceiver> transceivers, List<TransceiverCells> walks)
+    {
+        List<TransceiverCells> plans = new ArrayList<>();
+        SiteReferenceData data = siteGraph.getReferenceData();
+        for (Transceiver transceiver : transceivers)
         {
-            addFeederTechnology(feeder).addSegmentMatched(connection.getSegment(), false);
-            return;
+            Set<MobilesCell> cells = new LinkedHashSet<>();
+            for (Port port : transceiver.getSortedPorts())
+            {
+                int dataPort = data.indexOf(port);
+                if (dataPort == ConnectivityGraph.NONE)
+                    continue;
+                for (int s = data.getFirstSegment(dataPort); s < data.getEndSegment(dataPort); s++)
+                {
+                    if (data.getCell(s) != null)
+                        cells.add(data.getCell(s));
+                }
+            }
+            TransceiverCells plan = new TransceiverCells(transceiver, cells.size());
+            for (MobilesCell cell : cells)
+            {
+                TraceResultCache.Entry cached = traceCache.get(transceiver, cell);
+                if (cached == null)
+                    plan.uncached.add(cell);
+                plan.entries.add(cached);
+            }
+            plans.add(plan);
+            if (!plan.uncached.isEmpty())
+                walks.add(plan);
         }
+        return plans;
+    }
 
-        // If it is a junction device, find the mapped ports and call this recursively checking for a fit in frequency
-        // of the device path traversed and the allowed frequency of the current junction device
-        if (connection.getConnectedDevice() instanceof JunctionDevice)
+    /**
+     * Walks the cells that are not cached of the transceivers in the given
+     * range and fills in their traces. The cells of a transceiver are walked
+     * together so that they share their traversals. Does not read the cache
+     * or change the state of the handler.
+     */
+    private void walkTransceivers(ConnectivityGraph siteGraph, List<TransceiverCells> walks, int from, int to)
+    {
+        for (TransceiverCells plan : walks.subList(from, to))
         {
-            JunctionDevice jd = (JunctionDevice) connection.getConnectedDevice();
-            
-            final List<FrequencyRange> frequencyRanges = new ArrayList<>();
-            frequencyRanges.addAll(connection.getIncomingFrequencyRanges());
-            List<PortConnectionDetails> mappedPorts = findMappedPorts(jd, port, frequencyRanges);
-            if (!mappedPorts.isEmpty())
+            Iterator<TraceResultCache.Entry> walked = walkTransceiver(siteGraph, plan.transceiver, plan.uncached).iterator();
+            for (int i = 0; i < plan.entries.size(); i++)
             {
-                //System.out.println("Adding match to feeder " + connection.getFeeder().getNumber());
-                connection.setPass();
-                matchedFeederSet.add(connection.getFeeder());
-                //These lists are populated to provide info in the cell connectivity tree view
+                if (plan.entries.get(i) == null)
+                    plan.entries.set(i, walked.next());
+            }
+        }
+    }
 
-                feederList.add(feeder);
-                mappedPortsList.add(mappedPorts);
-                addFeederTechnology(feeder).addSegmentMatched(connection.getSegment(), true);
+    private void applyTrace(TraceResultCache.Entry entry)
+    {
+        for (TraceResultCache.Walk walk : entry.getWalks())
+        {
+            applyVisits(walk);
+        }
+        appliedTraces.add(entry);
+    }
 
-                mappedPorts.stream().forEach((nextConnection)
-                        -> 
+    private void applyVisits(TraceResultCache.Walk walk)
+    {
+        for (TraceResultCache.FeederVisit visit : walk.getVisits())
+        {
+            addFeederTechnology(visit.feeder).addCell(visit.cell, visit.matched);
+        }
+    }
+
+    private static boolean isTransceiverSide(Object component)
+    {
+        if (component instanceof Segment)
+            component = ((Segment) component).getParentPort();
+        if (component instanceof Port)
+            component = ((Port) component).getParentDevice();
+        return component instanceof Transceiver;
+    }
+
+    private void unpatch(TraceResultCache.Walk walk, Set<Feeder> patched)
+    {
+        for (TraceResultCache.FeederVisit visit : walk.getVisits())
+        {
+            FeederTechnology ft = feederTechnologyMap.get(visit.feeder);
+            if (ft != null)
+                ft.removeCell(visit.cell, visit.matched);
+            patched.add(visit.feeder);
+        }
+    }
+
+    private static void addVisitedFeeders(TraceResultCache.Walk walk, Set<Feeder> patched)
+    {
+        for (TraceResultCache.FeederVisit visit : walk.getVisits())
+        {
+            patched.add(visit.feeder);
+        }
+    }
+
+    private FeederTechnology addFeederTechnology(Feeder feeder)
+    {
+        assert feeder != null : "addFeederTechnology feeder is not null";
+        FeederTechnology existing = feederTechnologyMap.get(feeder);
+        if (existing == null)
+            feederTechnologyMap.put(feeder, existing = new FeederTechnology(feeder, cellOrdinals));
+        return existing;
+    }
+
+    /**
+     * @return the frequency range of the segment, empty if it is neither an
+     *         antenna nor a transceiver segment of the site
+     */
+    static FrequencyIntervalSet extractFrequenciesForSegment(SiteReferenceData data, Segment segment)
+    {
+        int s = data.indexOf(segment);
+        return s == ConnectivityGraph.NONE ? FrequencyIntervalSet.EMPTY : data.getFrequencies(s);
+    }
+
+    private static List<PortConnectionDetails> findAntennaConnectionPath(TraceContext context, PortConnectionDetails connection)
+    {
+        List<PortConnectionDetails> antennaConnections = context.getEndConnections();
+        antennaConnections.clear();
+
+        findConnectionPath(context, connection, antennaConnections);
+        return antennaConnections;
+    }
+
+    /**
+     * Follow the compiled graph from the given connection through any junction
+     * devices.
+     *
+     * @param context
+     * @param start
+     * @param antennaConnections
+     */
+    private static void findConnectionPath(TraceContext context, PortConnectionDetails start, List<PortConnectionDetails> antennaConnections)
+    {
+        final ConnectivityGraph siteGraph = context.getGraph();
+        context.push(start);
+        while (!context.isStackEmpty())
+        {
+            PortConnectionDetails connection = context.pop();
+            if (!context.takePending(connection))
+                continue;
+
+            Port port = connection.getConnectedPort();
+            int connectedPort = siteGraph.indexOf(port);
+            if (context.isOutsideRegion(connectedPort))
+                continue;
+            boolean firstArrival = context.markVisited(connectedPort);
+
+            Feeder feeder = connection.getFeeder();
+            if (feeder == null)
+                continue;
+            context.touch(feeder);
+            context.touch(port);
+
+            final Segment segment = context.getSegment(connection);
+            if (connectedPort == ConnectivityGraph.NONE)
+            {
+                if (firstArrival)
+                    context.addVisit(feeder, segment, false);
+                continue;
+            }
+
+            switch (siteGraph.getDeviceKind(siteGraph.getPortDevice(connectedPort)))
+            {
+                // If the connected device is an Antenna, add it to the list. The fit is checked once all the
+                // frequencies that can reach it are known
+                case ConnectivityGraph.DEVICE_ANTENNA:
+                    if (firstArrival)
+                        antennaConnections.add(connection);
+                    break;
+
+                // If it is a junction device, find the mapped ports and follow them checking for a fit in
+                // frequency of the device path traversed and the allowed frequency of the current junction device
+                case ConnectivityGraph.DEVICE_JUNCTION:
+                    // A chain of junction devices that pass every frequency is followed without looking up the mappings
+                    if (siteGraph.getChainStart(connectedPort) != ConnectivityGraph.NONE && !context.getIncomingFrequencies(connection).isEmpty())
+                    {
+                        followChain(context, connection, connectedPort, segment);
+                        break;
+                    }
+
+                    JunctionDevice jd = (JunctionDevice) siteGraph.getDevice(siteGraph.getPortDevice(connectedPort));
+                    context.touch(jd);
+
+                    List<PortConnectionDetails> mappedPorts = findMappedPorts(context, jd, port, context.getIncomingFrequencies(connection));
+                    if (!mappedPorts.isEmpty())
+                    {
+                        recordPass(context, connection, feeder, segment, mappedPorts);
+
+                        // Pushed in reverse so that the first mapped port is followed first
+                        for (int i = mappedPorts.size() - 1; i >= 0; i--)
                         {
-                            if (nextConnection.getFeeder() != null)
+                            PortConnectionDetails nextConnection = mappedPorts.get(i);
+                            context.touch(nextConnection.getPort());
+                            if (nextConnection.getFeeder() != null && context.isPending(nextConnection))
                             {
-                                nextConnection.setSegment(connection.getSegment());
-                                findConnectionPath(nextConnection, antennaConnections);
+                                context.setSegment(nextConnection, segment);
+                                context.push(nextConnection);
                             }
-                });
+                        }
+                    }
+                    else if (context.isPass(connection) == null)
+                    {
+                        // The coverage only grows, a connection that stops now stopped on every earlier arrival
+                        context.setPass(connection, false);
+                        context.addVisit(feeder, segment, false);
+                    }
+                    break;
+
+                // If the connected device is a Transceiver, we can't trace beyond so mark as a mis-match
+                case ConnectivityGraph.DEVICE_TRANSCEIVER:
+                    if (firstArrival)
+                        context.addVisit(feeder, segment, false);
             }
-            else
+        }
+    }
+
+    /**
+     * Record that a connection passes through the junction device at its end.
+     * A connection that is reached again with more frequencies may map to more
+     * ports, or pass where it stopped before.
+     */
+    private static void recordPass(TraceContext context, PortConnectionDetails connection, Feeder feeder, Segment segment, List<PortConnectionDetails> mappedPorts)
+    {
+        Boolean before = context.isPass(connection);
+        context.setPass(connection, true);
+        context.getMatchedFeederSet().add(feeder);
+
+        //These lists are populated to provide info in the cell connectivity tree view, for a recorded walk
+        if (Boolean.TRUE.equals(before))
+        {
+            if (context.isRecorded())
+                context.setTreeRow(connection, mappedPorts);
+            return;
+        }
+        if (context.isRecorded())
+            context.addTreeRow(connection, feeder, mappedPorts);
+        if (before == null)
+            context.addVisit(feeder, segment, true);
+        else
+            context.replaceVisit(feeder, segment, true);
+    }
+
+    /**
+     * Follow a chain of junction devices that pass every frequency through a
+     * single mapping.
+     *
+     * @param context
+     * @param connection the connection that enters the chain
+     * @param inputPort  the graph ordinal of the port the chain starts at
+     * @param segment
+     */
+    private static void followChain(TraceContext context, PortConnectionDetails connection, int inputPort, Segment segment)
+    {
+        final ConnectivityGraph siteGraph = context.getGraph();
+        final FrequencyIntervalSet frequencies = context.getIncomingFrequencies(connection);
+        final int end = siteGraph.getChainEnd(inputPort);
+        PortConnectionDetails incoming = connection;
+        int port = inputPort;
+        for (int hop = siteGraph.getChainStart(inputPort);; )
+        {
+            context.touch(siteGraph.getDevice(siteGraph.getPortDevice(port)));
+
+            int out = siteGraph.getChainHop(hop);
+            PortConnectionDetails next = siteGraph.getConnection(out);
+            context.addMapping(next, siteGraph.getChainMapping(port));
+            boolean grown = context.addIncomingFrequencies(next, frequencies);
+            if (!Boolean.TRUE.equals(context.isPass(incoming)))
+                recordPass(context, incoming, incoming.getFeeder(), segment, context.isRecorded() ? Collections.singletonList(next) : null);
+
+            context.touch(next.getPort());
+            if (!grown || next.getFeeder() == null)
+                return;
+            context.setSegment(next, segment);
+            if (++hop == end)
             {
-                //System.out.println("Adding mis-match to feeder " + connection.getFeeder().getNumber());
-                connection.setStop();
-                addFeederTechnology(feeder).addSegmentMatched(connection.getSegment(), false);
+                context.push(next);
+                return;
             }
+
+            // The next hop starts at the other end of the feeder
+            context.takePending(next);
+            port = siteGraph.getPeerPort(out);
+            context.markVisited(port);
+            context.touch(next.getFeeder());
+            context.touch(siteGraph.getPort(port));
+            incoming = next;
         }
     }
 
     /**
      * Finds the connectivity details for a single transceiver segment.
      * <p>
+     * @param context The context of the trace
      * @param port
      * @param segment The details about the segment being searched
      * @param mobilesCell
@@ -391,16 +900,32 @@ public class TransceiverConnectivityHandler extends CellConnectivityHelper
      * @return The list of the cell connection details for the given segment
      */
     private List<CellConnectionDetails> findConnectivityForSegment(
+            TraceContext context,
             Port port,
             Segment segment)
     {
-        PortConnectionDetails connection = port.getPortConnectionDetails();
+        return findCellsForSegment(context, segment, traceSegmentPath(context, port, segment));
+    }
+
+    /**
+     * Traverses the connections from a transceiver segment to the antennas
+     * they reach. The outcome only depends on the port and the frequencies of
+     * the segment.
+     *
+     * @param context The context of the trace
+     * @param port
+     * @param segment The details about the segment being searched
+     * @return the connections that reach an antenna
+     */
+    static List<PortConnectionDetails> traceSegmentPath(TraceContext context, Port port, Segment segment)
+    {
+        PortConnectionDetails connection = context.getGraph().getConnection(port);
         if (connection == null)
         {
-            return new ArrayList<>();
+            return Collections.emptyList();
         }
 
-        connection.setSegment(segment);
+        context.setSegment(connection, segment);
 
         /*
          * ModelVisualState modelVisualStateConnected; ModelVisualState
@@ -413,46 +938,62 @@ public class TransceiverConnectivityHandler extends CellConnectivityHelper
          * visualState; }
          */
         // Save the frequency range defined in the starting port segment for use during the search
-        FrequencyRange frequency = extractFrequencyRangeForSegment(segment, connection.getDevice());
+        FrequencyIntervalSet frequencies = extractFrequenciesForSegment(context.getGraph().getReferenceData(), segment);
 
-        connection.getIncomingFrequencyRanges().clear();
-        connection.getIncomingFrequencyRanges().add(frequency);
+        context.addIncomingFrequencies(connection, frequencies);
 
-        // Traverse recursively through the connected devices to find the antenna ports at the other end
-        List<PortConnectionDetails> antennaConnections = findAntennaConnectionPath(connection);
+        // Traverse through the connected devices to find the antenna ports at the other end
+        return findAntennaConnectionPath(context, connection);
+    }
 
-        // If no transceivers were found, return the empty list
+    /**
+     * Checks the fit of the segment with the antenna segments reached by its
+     * traversal.
+     *
+     * @param context            The context of the trace
+     * @param segment            The details about the segment being searched
+     * @param antennaConnections the connections that reach an antenna
+     * @return The list of the cell connection details for the given segment
+     */
+    private List<CellConnectionDetails> findCellsForSegment(TraceContext context, Segment segment, List<PortConnectionDetails> antennaConnections)
+    {
+        // If no antennas were found, return the empty list
         if (antennaConnections.isEmpty())
         {
             return new ArrayList<>();
         }
 
-        MobilesCell mobilesCell = segment.getMobilesCell();
-        TransceiverFuncType connectedFunction = segment.getSegmentFuncType();
+        SiteReferenceData data = context.getGraph().getReferenceData();
+        int s = data.indexOf(segment);
+        MobilesCell mobilesCell = s == ConnectivityGraph.NONE ? segment.getMobilesCell() : data.getCell(s);
+        TransceiverFuncType connectedFunction = s == ConnectivityGraph.NONE ? segment.getSegmentFuncType() : data.getFuncType(s);
 
         // For each port / segment returned, ensure that there is a fit between the frequency passed through the
         // Junction Devices and the segment on the transceiver.  If there is a fit, save the cell details and connected
         // function details into the cell connection details list
         List<CellConnectionDetails> cellsList = new ArrayList<>();
+        BitSet fits = new BitSet();
         for (PortConnectionDetails deviceConn : antennaConnections)
         {
             Antenna antenna = ((Antenna) deviceConn.getConnectedDevice());
             Port antennaPort = deviceConn.getConnectedPort();
             Feeder feeder = deviceConn.getFeeder();
+            context.touch(antenna);
 
-            List<Segment> segmentList = antennaPort.getSegmentsList();
-            if (segmentList.isEmpty())
+            int dataPort = data.indexOf(antennaPort);
+            if (dataPort == ConnectivityGraph.NONE || data.getFirstSegment(dataPort) == data.getEndSegment(dataPort))
             {
-                addFeederTechnology(feeder).addSegmentMatched(deviceConn.getSegment(), false);
+                context.addVisit(feeder, segment, false);
                 continue;
             }
-            for (Segment antennaSegment : antennaPort.getSegmentsList())
+            // The fits of all the segments of the port are found in one sweep, the outcome is recorded in segment order
+            data.findFittingSegments(dataPort, context.getIncomingFrequencies(deviceConn), fits);
+            for (int a = data.getFirstSegment(dataPort); a < data.getEndSegment(dataPort); a++)
             {
-                FrequencyRange antennaFrequency = extractFrequencyRangeForSegment(antennaSegment, antenna);
+                Segment antennaSegment = data.getSegment(a);
+                context.touch(antennaSegment);
                 // If the frequency is in the correct range, include the details for the segment
-
-                InteractiveVisualLocation vl = (InteractiveVisualLocation) feeder.getVisualLocation();
-                if (isFrequencyFit(deviceConn.getIncomingFrequencyRanges(), antennaFrequency.getMinFrequency(), antennaFrequency.getMaxFrequency()))
+                if (fits.get(a - data.getFirstSegment(dataPort)))
                 {
                     // Set up the cell connection details with the connected function type
                     CellConnectionDetails details = new CellConnectionDetails();
@@ -460,16 +1001,16 @@ public class TransceiverConnectivityHandler extends CellConnectivityHelper
                     details.setConnectedSegment(antennaSegment);
                     details.setTransceiverFuncType(connectedFunction);
                     details.setMobilesCell(mobilesCell);
-                    details.setMappedPortsList(mappedPortsList);
-                    matchedFeederSet.add(feeder);
-                    feederList.add(feeder);
-                    addFeederTechnology(feeder).addSegmentMatched(deviceConn.getSegment(), true);
-                    details.setMatchedFeederList(feederList);
+                    details.setMappedPortsList(context.getMappedPortsList());
+                    context.getMatchedFeederSet().add(feeder);
+                    context.getFeederList().add(feeder);
+                    context.addVisit(feeder, segment, true);
+                    details.setMatchedFeederList(context.getFeederList());
                     cellsList.add(details);
 
                 }
-                else if (!matchedFeederSet.contains(deviceConn.getFeeder()))
-                    addFeederTechnology(feeder).addSegmentMatched(deviceConn.getSegment(), false);
+                else if (!context.getMatchedFeederSet().contains(deviceConn.getFeeder()))
+                    context.addVisit(feeder, segment, false);
             }
         }
         return cellsList;
@@ -482,73 +1023,275 @@ public class TransceiverConnectivityHandler extends CellConnectivityHelper
      * @param port The transceiver port object to be analysed
      * @return the set of unique mobiles cells on the port
      */
-    private Set<MobilesCell> retrieveTransceiverMobileCells(Port port)
+    private Set<MobilesCell> retrieveTransceiverMobileCells(SiteReferenceData data, Port port)
     {
         Set<MobilesCell> cells = new TreeSet<>();
 
-        port.getSegmentsList().forEach(segment
-                -> 
-                {
-                    final Integer cellId = segment.getMobilesCellId();
-                    if (cellId != null)
-                    {
-                        final MobilesCell cell = CanradLibrary.getInstance().getMobilesCell(cellId);
-                        if (cell != null)
-                        {
-                            cells.add(cell);
-                        }
-                    }
-        });
+        int dataPort = data.indexOf(port);
+        if (dataPort == ConnectivityGraph.NONE)
+            return cells;
+        for (int s = data.getFirstSegment(dataPort); s < data.getEndSegment(dataPort); s++)
+        {
+            final MobilesCell cell = data.getCell(s);
+            if (cell != null)
+            {
+                cells.add(cell);
+            }
+        }
         return cells;
     }
 
-    private static class FeederTechnology
+    /**
+     * The cells of a transceiver and their traces, in the order the cells are
+     * found. The traces of the cells that are not cached are filled in by a
+     * single task.
+     */
+    private static class TransceiverCells
+    {
+        final Transceiver transceiver;
+        final List<MobilesCell> uncached = new ArrayList<>();
+        final List<TraceResultCache.Entry> entries;
+
+        TransceiverCells(Transceiver transceiver, int cellCount)
+        {
+            this.transceiver = transceiver;
+            entries = new ArrayList<>(cellCount);
+        }
+    }
+
+    /**
+     * Walks the cells of a range of transceivers, splitting the range in two
+     * until a single transceiver is left.
+     */
+    private class TransceiverTraceTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final ConnectivityGraph siteGraph;
+        private final List<TransceiverCells> walks;
+        private final int from;
+        private final int to;
+
+        TransceiverTraceTask(ConnectivityGraph siteGraph, List<TransceiverCells> walks, int from, int to)
+        {
+            this.siteGraph = siteGraph;
+            this.walks = walks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= 1)
+            {
+                walkTransceivers(siteGraph, walks, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new TransceiverTraceTask(siteGraph, walks, from, middle), new TransceiverTraceTask(siteGraph, walks, middle, to));
+        }
+    }
+
+    /**
+     * Gives each mobiles cell seen on the feeders of a site a small ordinal,
+     * so that the cells on a feeder can be held as bit sets. The table lives as
+     * long as the feeder technologies built from it.
+     */
+    static class CellOrdinals
+    {
+        private final Map<MobilesCell, Integer> ordinals = new IdentityHashMap<>();
+        private final List<MobilesCell> cells = new ArrayList<>();
+        private int[] techRanks = new int[16];
+
+        public int ordinalOf(MobilesCell cell)
+        {
+            Integer ordinal = ordinals.get(cell);
+            if (ordinal == null)
+            {
+                ordinal = cells.size();
+                ordinals.put(cell, ordinal);
+                cells.add(cell);
+                if (ordinal == techRanks.length)
+                    techRanks = Arrays.copyOf(techRanks, ordinal * 2);
+                techRanks[ordinal] = TechnologyRank.rankOf(cell);
+            }
+            return ordinal;
+        }
+
+        /**
+         * @return the ordinal of the cell, or {@link ConnectivityGraph#NONE}
+         *         if it has not been seen
+         */
+        public int indexOf(MobilesCell cell)
+        {
+            Integer ordinal = ordinals.get(cell);
+            return ordinal == null ? ConnectivityGraph.NONE : ordinal;
+        }
+
+        public MobilesCell getCell(int ordinal)
+        {
+            return cells.get(ordinal);
+        }
+
+        /**
+         * @return the technology rank of the cell, found when it was given its
+         *         ordinal
+         */
+        public int getTechRank(int ordinal)
+        {
+            return techRanks[ordinal];
+        }
+
+        public int size()
+        {
+            return cells.size();
+        }
+    }
+
+    /**
+     * The cells that reach a feeder, matched or mismatched.
+     */
+    static class FeederTechnology
     {
         public final Feeder feeder;
-        private final List<SegmentMatched> segments;
+        private final CellOrdinals cellOrdinals;
+        private final BitSet matchedCells = new BitSet();
+        private final BitSet mismatchedCells = new BitSet();
+        private int[] matchedCounts = new int[0];
+        private int[] mismatchedCounts = new int[0];
 
-        public FeederTechnology(Feeder feeder)
+        public FeederTechnology(Feeder feeder, CellOrdinals cellOrdinals)
         {
             this.feeder = feeder;
-            segments = new ArrayList<>();
+            this.cellOrdinals = cellOrdinals;
         }
 
-        public void addSegmentMatched(Segment segment, boolean matched)
+        public void addCell(MobilesCell cell, boolean matched)
         {
-            segments.add(new SegmentMatched(segment, matched));
+            if (cell == null)
+                return;
+            int ordinal = cellOrdinals.ordinalOf(cell);
+            if (matched)
+            {
+                matchedCounts = ensureCapacity(matchedCounts, ordinal);
+                if (matchedCounts[ordinal]++ == 0)
+                    matchedCells.set(ordinal);
+            }
+            else
+            {
+                mismatchedCounts = ensureCapacity(mismatchedCounts, ordinal);
+                if (mismatchedCounts[ordinal]++ == 0)
+                    mismatchedCells.set(ordinal);
+            }
         }
 
-        public List<MobilesCell> getCellsOnFeeder(boolean includeMatched, boolean includeMismatched)
+        public void removeCell(MobilesCell cell, boolean matched)
         {
-            List<MobilesCell> list = new ArrayList<>();
-            for (SegmentMatched segmentMatched : segments)
+            int ordinal = cellOrdinals.indexOf(cell);
+            if (ordinal == ConnectivityGraph.NONE)
+                return;
+            if (matched)
             {
-                if (segmentMatched.matched)
-                {
-                    if (!includeMatched)
-                        continue;
-                }
-                else if (!includeMismatched)
-                    continue;
-                MobilesCell cell = segmentMatched.segment.getMobilesCell();
-                if (!list.contains(cell))
-                    list.add(cell);
+                if (ordinal < matchedCounts.length && matchedCounts[ordinal] > 0 && --matchedCounts[ordinal] == 0)
+                    matchedCells.clear(ordinal);
             }
-            return list;
+            else
+            {
+                if (ordinal < mismatchedCounts.length && mismatchedCounts[ordinal] > 0 && --mismatchedCounts[ordinal] == 0)
+                    mismatchedCells.clear(ordinal);
+            }
+        }
+
+        /**
+         * @return a copy of the cells on the feeder, unchanged by later
+         *         visits. The cell ordinals are shared; they are only ever
+         *         added to.
+         */
+        FeederTechnology copy()
+        {
+            FeederTechnology copy = new FeederTechnology(feeder, cellOrdinals);
+            copy.matchedCells.or(matchedCells);
+            copy.mismatchedCells.or(mismatchedCells);
+            copy.matchedCounts = matchedCounts.clone();
+            copy.mismatchedCounts = mismatchedCounts.clone();
+            return copy;
         }
 
-        public static class SegmentMatched
+        private static int[] ensureCapacity(int[] counts, int ordinal)
         {
-            public final Segment segment;
-            public final boolean matched;
+            if (ordinal < counts.length)
+                return counts;
+            return Arrays.copyOf(counts, Math.max(ordinal + 1, counts.length * 2));
+        }
 
-            public SegmentMatched(Segment segment, boolean matched)
+        public boolean isEmpty()
+        {
+            return matchedCells.isEmpty() && mismatchedCells.isEmpty();
+        }
+
+        public boolean hasMatched()
+        {
+            return !matchedCells.isEmpty();
+        }
+
+        public boolean hasMismatched()
+        {
+            return !mismatchedCells.isEmpty();
+        }
+
+        public boolean isOnFeeder(MobilesCell cell, boolean matched)
+        {
+            int ordinal = cellOrdinals.indexOf(cell);
+            if (ordinal == ConnectivityGraph.NONE)
+                return false;
+            return matched ? matchedCells.get(ordinal) : mismatchedCells.get(ordinal);
+        }
+
+        /**
+         * @return the ordinals of the cells on the feeder; the returned set is
+         *         a copy
+         */
+        public BitSet getCellSet(boolean includeMatched, boolean includeMismatched)
+        {
+            BitSet set = new BitSet();
+            if (includeMatched)
+                set.or(matchedCells);
+            if (includeMismatched)
+                set.or(mismatchedCells);
+            return set;
+        }
+
+        /**
+         * @param matched true for the matched cells, false for the mismatched
+         * @return the highest technology rank of the cells, or
+         *         {@link TechnologyRank#NONE} if none has a known technology
+         */
+        public int getHighestTechRank(boolean matched)
+        {
+            BitSet set = matched ? matchedCells : mismatchedCells;
+            int highestRank = TechnologyRank.NONE;
+            for (int ordinal = set.nextSetBit(0); ordinal >= 0 && highestRank != 0; ordinal = set.nextSetBit(ordinal + 1))
             {
-                this.segment = segment;
-                this.matched = matched;
+                int rank = cellOrdinals.getTechRank(ordinal);
+                if (rank != TechnologyRank.NONE && (highestRank == TechnologyRank.NONE || rank < highestRank))
+                    highestRank = rank;
             }
+            return highestRank;
         }
 
+        public List<MobilesCell> getCellsOnFeeder(boolean includeMatched, boolean includeMismatched)
+        {
+            BitSet set = includeMatched && !includeMismatched ? matchedCells
+                    : !includeMatched && includeMismatched ? mismatchedCells
+                    : getCellSet(includeMatched, includeMismatched);
+            List<MobilesCell> list = new ArrayList<>(set.cardinality());
+            for (int ordinal = set.nextSetBit(0); ordinal >= 0; ordinal = set.nextSetBit(ordinal + 1))
+            {
+                list.add(cellOrdinals.getCell(ordinal));
+            }
+            return list;
+        }
     }
 
 }
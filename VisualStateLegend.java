@@ -59,8 +59,8 @@ public class VisualStateLegend
     }
     public void buildTechVisualStateLegend() {
         //retrieve data from viewport
-       List<Color> statusTechList = CanradModelVisualState.getTechnologyColours();
-       List<CanradModelVisualState> techVisualStateList = CanradModelVisualState.technologyVisualStates;
+       List<Color> statusTechList = TechnologyRank.getColours();
+       List<CanradModelVisualState> techVisualStateList = TechnologyRank.getVisualStates();
      
         //access controller for pop up window
         visualStateController.setData("Technology Legend", techVisualStateList,statusTechList);
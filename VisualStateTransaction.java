@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Telstra Corporation.
+ *
+ * This program is the property of Telstra Corporation.
+ * You may not use this code without the express permission of
+ * the designated business owner of the software in Telstra.
+ * Parts of this program are copyright Dialog Information Technology
+ * and licensed for the use of Telstra Corporation as part of this
+ * software.
+ */
+package canrad.celltrace;
+
+import dialog.geometry.viewmodel.ModelVisualState;
+import dialog.geometry.visuals.InteractiveVisualLocation;
+import dialog.geometry.visuals.ViewportStupid;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javafx.application.Platform;
+
+/**
+ * The VisualStateTransaction class collects the visual state map changes of
+ * a set of visual locations and applies them in a single run on the FX
+ * application thread. A transaction is used once.
+ *
+ * @author
+ */
+public final class VisualStateTransaction
+{
+    private final Map<InteractiveVisualLocation, Change> changes = new IdentityHashMap<>();
+    private final List<Change> changeList = new ArrayList<>();
+    private boolean committed;
+
+    /**
+     * Maps a visual state of the location to another visual state, as
+     * {@link InteractiveVisualLocation#addVisualStateMap} does. A later map of
+     * the same location replaces it.
+     */
+    public void addVisualStateMap(InteractiveVisualLocation vl, ModelVisualState state, ModelVisualState mappedState, ViewportStupid viewport, String usage)
+    {
+        Change change = changeOf(vl, state, viewport, usage);
+        change.mappedState = mappedState;
+    }
+
+    /**
+     * Removes the map of a visual state of the location, as
+     * {@link InteractiveVisualLocation#extractVisualStateMap} does, along
+     * with any map added earlier in the transaction.
+     */
+    public void extractVisualStateMap(InteractiveVisualLocation vl, ModelVisualState state, ViewportStupid viewport, String usage)
+    {
+        Change change = changeOf(vl, state, viewport, usage);
+        change.extract = true;
+        change.mappedState = null;
+    }
+
+    private Change changeOf(InteractiveVisualLocation vl, ModelVisualState state, ViewportStupid viewport, String usage)
+    {
+        if (committed)
+            throw new IllegalStateException("The visual state transaction has been committed");
+        Change change = changes.get(vl);
+        if (change == null)
+        {
+            change = new Change(vl);
+            changes.put(vl, change);
+            changeList.add(change);
+        }
+        change.state = state;
+        change.viewport = viewport;
+        change.usage = usage;
+        return change;
+    }
+
+    public boolean isEmpty()
+    {
+        return changeList.isEmpty();
+    }
+
+    /**
+     * Posts the changes to be applied later in a single run on the FX
+     * application thread, even when called on it.
+     */
+    public void commit()
+    {
+        committed = true;
+        if (changeList.isEmpty())
+            return;
+        Platform.runLater(this::apply);
+    }
+
+    private void apply()
+    {
+        for (Change change : changeList)
+        {
+            if (change.extract)
+                change.vl.extractVisualStateMap(change.state, change.viewport, change.usage);
+            if (change.mappedState != null)
+                change.vl.addVisualStateMap(change.state, change.mappedState, change.viewport, change.usage);
+            change.vl.setVisualState(change.state, false, change.viewport);
+        }
+    }
+
+    private static final class Change
+    {
+        final InteractiveVisualLocation vl;
+        ModelVisualState state;
+        ModelVisualState mappedState;
+        boolean extract;
+        ViewportStupid viewport;
+        String usage;
+
+        Change(InteractiveVisualLocation vl)
+        {
+            this.vl = vl;
+        }
+    }
+}